@@ -23,20 +23,32 @@ import android.app.FragmentManager;
 import android.content.Intent;
 import android.support.design.widget.TabLayout;
 import android.support.v13.app.FragmentPagerAdapter;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewGroup;
 
 import com.mokee.aegis.R;
 import com.mokee.aegis.fragments.HibernateAppsFragment;
 import com.mokee.aegis.fragments.PacifierAppsFragment;
 import com.mokee.aegis.fragments.PermissionAppsFragment;
+import com.mokee.aegis.fragments.PermissionsFrameFragment;
+import com.mokee.aegis.fragments.PermissionsFrameFragment.OnTabDrawnListener;
 import com.mokee.aegis.fragments.WardenAppsFragment;
+import com.mokee.aegis.model.AppCatalog;
 
-public class ManagePermissionsActivity extends AppCompatActivity {
+public class ManagePermissionsActivity extends AppCompatActivity implements OnTabDrawnListener {
+    private static final String TAG = "ManagePermissionsActivity";
 
     private SectionsPagerAdapter mSectionsPagerAdapter;
 
@@ -45,9 +57,18 @@ public class ManagePermissionsActivity extends AppCompatActivity {
      */
     private ViewPager mViewPager;
 
+    // Search query of the toolbar, applied to the current tab
+    private String mQuery;
+
+    private long mCreateTime;
+    private boolean mFirstFrameReported;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
+        // Op changes are pushed to the tabs from now on, resuming doesn't rescan for them.
+        AppCatalog.get(this).startWatchingOps();
         setContentView(R.layout.permissions_main);
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -60,16 +81,62 @@ public class ManagePermissionsActivity extends AppCompatActivity {
         mViewPager = (ViewPager) findViewById(R.id.container);
         mViewPager.setAdapter(mSectionsPagerAdapter);
         mViewPager.setCurrentItem(2);
+        mViewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                applyQuery();
+            }
+        });
 
         TabLayout tabLayout = (TabLayout) findViewById(R.id.tabs);
         tabLayout.setupWithViewPager(mViewPager);
 
     }
 
+    /**
+     * Tabs only load their apps once shown. When the current tab drew its apps for the
+     * first time, report how long that took and prefetch the neighbouring tabs once the
+     * main thread is idle, so swiping to them shows their apps right away.
+     */
+    @Override
+    public void onTabDrawn(PermissionsFrameFragment fragment) {
+        final int position = mViewPager.getCurrentItem();
+        if (mFirstFrameReported || fragment != mSectionsPagerAdapter.getFragment(position)) {
+            return;
+        }
+        mFirstFrameReported = true;
+        Log.i(TAG, "Time to first interactive frame: "
+                + (SystemClock.elapsedRealtime() - mCreateTime) + " ms");
+        reportFullyDrawn();
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                prefetch(position - 1);
+                prefetch(position + 1);
+                return false;
+            }
+        });
+    }
+
+    private void prefetch(int position) {
+        PermissionsFrameFragment fragment = mSectionsPagerAdapter.getFragment(position);
+        if (fragment != null && fragment.isAdded()) {
+            fragment.activate();
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
         switch (id) {
+            case R.id.action_allow_all:
+            case R.id.action_deny_all:
+                PermissionsFrameFragment fragment =
+                        mSectionsPagerAdapter.getFragment(mViewPager.getCurrentItem());
+                if (fragment != null) {
+                    fragment.setAllAppsAllowed(id == R.id.action_allow_all);
+                }
+                break;
             case R.id.action_settings:
                 startActivity(new Intent(this, SettingsActivity.class));
         }
@@ -79,19 +146,66 @@ public class ManagePermissionsActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        if (!PermissionsFrameFragment.isListMode(this)) {
+            searchItem.setVisible(false);
+            return true;
+        }
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mQuery = newText;
+                applyQuery();
+                return true;
+            }
+        });
         return true;
     }
 
+    private void applyQuery() {
+        PermissionsFrameFragment fragment =
+                mSectionsPagerAdapter.getFragment(mViewPager.getCurrentItem());
+        if (fragment != null) {
+            fragment.setQuery(mQuery);
+        }
+    }
+
     /**
      * A {@link FragmentPagerAdapter} that returns a fragment corresponding to
      * one of the sections/tabs/pages.
      */
     public class SectionsPagerAdapter extends FragmentPagerAdapter {
+        // Map position -> fragment currently attached by the view pager
+        private final SparseArray<PermissionsFrameFragment> mFragments = new SparseArray<>();
 
         public SectionsPagerAdapter(FragmentManager fm) {
             super(fm);
         }
 
+        @Override
+        public Object instantiateItem(ViewGroup container, int position) {
+            Object fragment = super.instantiateItem(container, position);
+            mFragments.put(position, (PermissionsFrameFragment) fragment);
+            return fragment;
+        }
+
+        @Override
+        public void destroyItem(ViewGroup container, int position, Object object) {
+            mFragments.remove(position);
+            super.destroyItem(container, position, object);
+        }
+
+        public PermissionsFrameFragment getFragment(int position) {
+            return mFragments.get(position);
+        }
+
         @Override
         public Fragment getItem(int position) {
             // getItem is called to instantiate the fragment for the given page.
@@ -22,39 +22,27 @@ import android.app.AppOpsManager;
 import android.app.Fragment;
 import android.content.Context;
 import android.os.Bundle;
-import android.support.v14.preference.SwitchPreference;
-import android.support.v7.preference.Preference;
-import android.support.v7.preference.PreferenceCategory;
-import android.support.v7.preference.PreferenceScreen;
 import android.util.SparseArray;
 import android.view.View;
 import android.widget.TextView;
 
 import com.mokee.aegis.R;
+import com.mokee.aegis.model.AppListModel;
+import com.mokee.aegis.model.AppListModel.Callback;
 import com.mokee.aegis.model.PermissionApps;
-import com.mokee.aegis.model.PermissionApps.Callback;
-import com.mokee.aegis.model.PermissionApps.PermissionApp;
-import com.mokee.aegis.utils.PmCache;
+import com.mokee.aegis.model.PolicyStore;
+import com.mokee.aegis.utils.PolicyWriteQueue;
 
-public final class PermissionAppsFragment extends PermissionsFrameFragment implements Callback, Preference.OnPreferenceChangeListener {
+public final class PermissionAppsFragment extends PermissionsFrameFragment implements Callback {
 
     private static final String TAG = PermissionAppsFragment.class.getName();
-    private static final String PREF_CATEGORY_ALLOW_KEY = "pref_category_allow_key";
-    private static final String PREF_CATEGORY_DENY_KEY = "pref_category_deny_key";
     private static final String APP_OP_MODE = "app_op_mode";
 
     private PermissionApps mPermissionApps;
     private AppOpsManager mAppOpsManager;
 
-    private PreferenceScreen screenRoot;
-    private PreferenceCategory categoryAllow;
-    private PreferenceCategory categoryDeny;
-
     private int mCurAppOpMode;
 
-    private int mCurCategoryAllowResId;
-    private int mCurCategoryDenyResId;
-
     public static Fragment newInstance(int mode) {
         return setPermissionName(new PermissionAppsFragment(), mode);
     }
@@ -72,6 +60,7 @@ public final class PermissionAppsFragment extends PermissionsFrameFragment imple
         mAppOpsManager = (AppOpsManager) getActivity().getSystemService(Context.APP_OPS_SERVICE);
         setLoading(true /* loading */, false /* animate */);
         mCurAppOpMode = getArguments().getInt(APP_OP_MODE);
+        mPolicy = PolicyStore.getOpPolicy(mCurAppOpMode);
         final SparseArray<String> groups = new SparseArray<String>();
         switch (mCurAppOpMode) {
             case AppOpsManager.OP_BOOT_COMPLETED:
@@ -85,14 +74,14 @@ public final class PermissionAppsFragment extends PermissionsFrameFragment imple
                 groups.put(AppOpsManager.OP_WAKE_LOCK, Manifest.permission.WAKE_LOCK);
                 break;
         }
-        mPermissionApps = new PermissionApps(getActivity(), groups, this, PmCache.getPmCache(getContext()));
-        mPermissionApps.refresh();
+        mPermissionApps = new PermissionApps(getActivity(), groups, this);
+        setModel(mPermissionApps);
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        mPermissionApps.refresh();
+    public void onDestroy() {
+        super.onDestroy();
+        mPermissionApps.cancel();
     }
 
     @Override
@@ -106,106 +95,27 @@ public final class PermissionAppsFragment extends PermissionsFrameFragment imple
     }
 
     @Override
-    public void onPermissionsLoaded(PermissionApps permissionApps) {
-
-        getPreferenceManager().setSharedPreferencesName("appops_" + mCurAppOpMode);
-        Context mContext = getPreferenceManager().getContext();
-
-        if (mContext == null) {
-            return;
-        }
-
-        screenRoot = getPreferenceScreen();
-
-        categoryAllow = (PreferenceCategory) screenRoot.findPreference(PREF_CATEGORY_ALLOW_KEY);
-        if (categoryAllow == null) {
-            categoryAllow = new PreferenceCategory(mContext);
-            categoryAllow.setKey(PREF_CATEGORY_ALLOW_KEY);
-            categoryAllow.setTitle(mCurCategoryAllowResId);
-            screenRoot.addPreference(categoryAllow);
-        }
-
-        categoryDeny = (PreferenceCategory) screenRoot.findPreference(PREF_CATEGORY_DENY_KEY);
-        if (categoryDeny == null) {
-            categoryDeny = new PreferenceCategory(mContext);
-            categoryDeny.setKey(PREF_CATEGORY_DENY_KEY);
-            categoryDeny.setTitle(mCurCategoryDenyResId);
-            screenRoot.addPreference(categoryDeny);
-        }
-
-        if (permissionApps.getApps().size() != 0) {
-            for (final PermissionApp app : permissionApps.getApps()) {
-                boolean isChecked = app.getRequestPermissionStatus().get(mCurAppOpMode);
-                String key = app.getKey();
-                SwitchPreference existingPref = (SwitchPreference) screenRoot.findPreference(key);
-                if (existingPref != null) {
-                    existingPref.setChecked(isChecked);
-                    continue;
-                }
-                boolean exists = false;
-                for (int index = 0; index < app.getRequestPermissionStatus().size(); index++) {
-                    if (app.getRequestPermissionStatus().keyAt(index) == mCurAppOpMode) {
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) continue;
-                SwitchPreference pref = new SwitchPreference(mContext);
-                pref.setKey(key);
-                pref.setIcon(app.getIcon());
-                pref.setTitle(app.getLabel());
-                pref.setChecked(isChecked);
-                pref.setOnPreferenceChangeListener(this);
-                if (isChecked) {
-                    categoryAllow.addPreference(pref);
-                } else {
-                    categoryDeny.addPreference(pref);
-                }
-            }
-            if (categoryAllow.getPreferenceCount() == 0) {
-                screenRoot.removePreference(categoryAllow);
-            }
-            if (categoryDeny.getPreferenceCount() == 0) {
-                screenRoot.removePreference(categoryDeny);
-            }
-        } else {
-            screenRoot.removeAll();
-        }
-
-        setLoading(false /* loading */, true /* animate */);
+    public void onAppsLoaded(AppListModel model) {
+        onModelLoaded(model.getSnapshot());
     }
 
     @Override
-    public boolean onPreferenceChange(Preference preference, Object newValue) {
-        PermissionApp app = mPermissionApps.getApp(preference.getKey());
-        mAppOpsManager.setMode(mCurAppOpMode, app.getUid(),
-                app.getPackageName(), (Boolean) newValue ? AppOpsManager.MODE_ALLOWED : mAppOpsManager.MODE_IGNORED);
-        if (!(Boolean) newValue) {
-            categoryAllow.removePreference(preference);
-            categoryDeny.addPreference(preference);
-        } else {
-            categoryDeny.removePreference(preference);
-            categoryAllow.addPreference(preference);
-        }
-        if (categoryAllow.getPreferenceCount() == 0) {
-            screenRoot.removePreference(categoryAllow);
-        } else {
-            if (screenRoot.findPreference(PREF_CATEGORY_ALLOW_KEY) == null || categoryAllow.getPreferenceCount() == 1 && (Boolean) newValue) {
-                screenRoot.addPreference(categoryAllow);
-                if (screenRoot.findPreference(PREF_CATEGORY_DENY_KEY) != null) {
-                    screenRoot.removePreference(categoryDeny);
-                    screenRoot.addPreference(categoryDeny);
-                }
-            }
+    protected PolicyWriteQueue.Write createWrite(String key, final boolean allowed) {
+        AppListModel.App app = mPermissionApps.getApp(key);
+        if (app == null) {
+            // Gone since the last load, the next one drops its row.
+            return null;
         }
-        if (categoryDeny.getPreferenceCount() == 0) {
-            screenRoot.removePreference(categoryDeny);
-        } else {
-            if (screenRoot.findPreference(PREF_CATEGORY_DENY_KEY) == null) {
-                screenRoot.addPreference(categoryDeny);
+        final int uid = app.getUid();
+        final String packageName = app.getPackageName();
+        return new PolicyWriteQueue.Write() {
+            @Override
+            public boolean apply(PolicyWriteQueue.Batch batch) {
+                mAppOpsManager.setMode(mCurAppOpMode, uid,
+                        packageName, allowed ? AppOpsManager.MODE_ALLOWED : mAppOpsManager.MODE_IGNORED);
+                return true;
             }
-        }
-        return true;
+        };
     }
 
 }
@@ -17,23 +17,57 @@
 
 package com.mokee.aegis.fragments;
 
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.UserHandle;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v14.preference.PreferenceFragment;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceScreen;
+import android.support.v7.view.ActionMode;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.AdapterDataObserver;
+import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.animation.Animation;
 import android.view.animation.Animation.AnimationListener;
 import android.view.animation.AnimationUtils;
 import android.widget.TextView;
 
 import com.mokee.aegis.R;
+import com.mokee.aegis.model.AppListItem;
+import com.mokee.aegis.model.ChangeSet;
+import com.mokee.aegis.model.ModelSnapshot;
+import com.mokee.aegis.model.PolicyStore;
+import com.mokee.aegis.model.RefreshCoordinator;
+import com.mokee.aegis.model.SearchIndex;
+import com.mokee.aegis.utils.PolicyWriteQueue;
+import com.mokee.aegis.widget.AppListAdapter;
+import com.mokee.aegis.widget.AppSwitchPreference;
 
-public abstract class PermissionsFrameFragment extends PreferenceFragment {
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public abstract class PermissionsFrameFragment extends PreferenceFragment
+        implements Preference.OnPreferenceChangeListener, AppListAdapter.OnAppSwitchListener {
+
+    private static final String KEY_AEGIS_LIST_MODE = "aegis_list_mode";
+
+    protected static final String PREF_CATEGORY_ALLOW_KEY = "pref_category_allow_key";
+    protected static final String PREF_CATEGORY_DENY_KEY = "pref_category_deny_key";
 
     private ViewGroup mPreferencesContainer;
 
@@ -41,6 +75,43 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
     private ViewGroup mPrefsView;
     private boolean mIsLoading;
 
+    protected PreferenceScreen screenRoot;
+    protected PreferenceCategory categoryAllow;
+    protected PreferenceCategory categoryDeny;
+
+    protected int mCurCategoryAllowResId;
+    protected int mCurCategoryDenyResId;
+    // Policy the tab switches, named like the preferences that persist it
+    protected String mPolicy;
+
+    // Whether the rows of the first load were added, later loads only apply their changes
+    private boolean mPopulated;
+    // Map key -> row of the app, kept in sync as rows are added and removed
+    private final ArrayMap<String, AppSwitchPreference> mAppPreferences = new ArrayMap<>();
+
+    private RefreshCoordinator.Listener mModel;
+    // Whether the model was registered for refreshes, which happens once the tab is shown
+    private boolean mActive;
+    private boolean mDrawn;
+
+    // Whether the apps are shown by the list adapter instead of preference rows
+    private boolean mListMode;
+    private AppListAdapter mListAdapter;
+    private ActionMode mActionMode;
+
+    // Observer showing the empty view, registered on the adapter of the current view only
+    private RecyclerView.Adapter<?> mObservedAdapter;
+    private AdapterDataObserver mEmptyObserver;
+
+    // Apps of the last load
+    private Collection<? extends AppListItem> mApps;
+    // Last load shown, maps the keys of the rows back to their app
+    private ModelSnapshot<?> mSnapshot;
+
+    private SearchIndex<?> mSearchIndex;
+    private SearchIndex.Result mSearchResult;
+    private String mQuery;
+
     /**
      * Returns the view group that holds the preferences objects. This will
      * only be set after {@link #onCreateView} has been called.
@@ -66,6 +137,21 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
         return rootView;
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mListMode = isListMode(getContext());
+    }
+
+    /**
+     * Returns whether the tabs show their apps with the list adapter, which also provides
+     * selection and search.
+     */
+    public static boolean isListMode(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(KEY_AEGIS_LIST_MODE, true);
+    }
+
     @Override
     public void onCreatePreferences(@Nullable Bundle savedInstanceState, String rootKey) {
         PreferenceScreen preferences = getPreferenceScreen();
@@ -75,8 +161,520 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
         }
     }
 
+    /**
+     * Sets the model of the tab. It is only loaded once the tab becomes visible, or when
+     * the activity prefetches it through {@link #activate}.
+     */
+    protected void setModel(RefreshCoordinator.Listener model) {
+        mModel = model;
+    }
+
+    /**
+     * Starts loading the model of the tab, if that did not happen yet.
+     */
+    public void activate() {
+        if (!mActive && mModel != null) {
+            mActive = true;
+            RefreshCoordinator coordinator = RefreshCoordinator.get(getContext());
+            coordinator.register(mModel);
+            coordinator.refresh(mModel);
+        }
+    }
+
+    @Override
+    public void setUserVisibleHint(boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        if (isVisibleToUser && isResumed()) {
+            activate();
+        }
+        if (!isVisibleToUser && mActionMode != null) {
+            mActionMode.finish();
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mActive) {
+            RefreshCoordinator.get(getContext()).requestRefresh();
+        } else if (getUserVisibleHint()) {
+            activate();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        // The list adapter outlives the view, don't let it hold on to the old one.
+        unregisterEmptyObserver();
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mActive) {
+            RefreshCoordinator.get(getContext()).unregister(mModel);
+        }
+    }
+
+    /**
+     * Shows a load of the model, the subclasses forward their model callback here.
+     */
+    protected void onModelLoaded(ModelSnapshot<?> snapshot) {
+        getPreferenceManager().setSharedPreferencesName(mPolicy);
+        if (getPreferenceManager().getContext() == null) {
+            return;
+        }
+
+        // Take everything from one snapshot so the index, the apps and the changes
+        // belong together.
+        mSnapshot = snapshot;
+        setSearchIndex(snapshot.getSearchIndex());
+        applyChanges(snapshot.getApps(), snapshot.getChanges());
+
+        setLoading(false /* loading */, true /* animate */);
+    }
+
+    /**
+     * Brings the rows up to date with a load of the model. The first load adds a row for
+     * every app, later ones only touch the rows named by {@code changes}, so a load that
+     * changed nothing does not touch the preference hierarchy at all.
+     */
+    protected void applyChanges(Collection<? extends AppListItem> apps,
+            ChangeSet<? extends AppListItem> changes) {
+        mApps = apps;
+        if (mPopulated && changes.isEmpty()) {
+            return;
+        }
+        if (mListMode) {
+            mPopulated = true;
+            getListAdapter().applyChanges(apps, changes);
+            return;
+        }
+        Context context = getPreferenceManager().getContext();
+        screenRoot = getPreferenceScreen();
+        if (categoryAllow == null) {
+            categoryAllow = createCategory(context, PREF_CATEGORY_ALLOW_KEY, mCurCategoryAllowResId, 0);
+            categoryDeny = createCategory(context, PREF_CATEGORY_DENY_KEY, mCurCategoryDenyResId, 1);
+        }
+        if (!mPopulated) {
+            mPopulated = true;
+            for (AppListItem app : apps) {
+                addAppPreference(context, app);
+            }
+        } else {
+            for (AppListItem app : changes.getRemoved()) {
+                removeAppPreference(mAppPreferences.remove(app.getKey()));
+            }
+            for (AppListItem app : changes.getAdded()) {
+                addAppPreference(context, app);
+            }
+            for (AppListItem app : changes.getMoved()) {
+                updateAppPreference(context, app);
+            }
+            for (AppListItem app : changes.getChanged()) {
+                updateAppPreference(context, app);
+            }
+        }
+
+        hideEmptyCategory(categoryAllow);
+        hideEmptyCategory(categoryDeny);
+    }
+
+    private PreferenceCategory createCategory(Context context, String key, int titleResId, int order) {
+        PreferenceCategory category = new PreferenceCategory(context);
+        category.setKey(key);
+        category.setTitle(titleResId);
+        category.setOrder(order);
+        // Keep the rows sorted by label.
+        category.setOrderingAsAdded(false);
+        return category;
+    }
+
+    /**
+     * Returns whether a category is part of the screen. Only looks at the top level, unlike
+     * findPreference() which walks every row when the category is missing.
+     */
+    private boolean isShown(PreferenceCategory category) {
+        for (int i = 0; i < screenRoot.getPreferenceCount(); i++) {
+            if (screenRoot.getPreference(i) == category) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the category for rows in the given state, adding it to the screen first if
+     * needed. Rows are only added to categories that are part of the hierarchy. The
+     * categories have a fixed order, so adding one never reorders the other.
+     */
+    private PreferenceCategory showCategory(boolean allowed) {
+        PreferenceCategory category = allowed ? categoryAllow : categoryDeny;
+        if (!isShown(category)) {
+            screenRoot.addPreference(category);
+        }
+        return category;
+    }
+
+    private void hideEmptyCategory(PreferenceCategory category) {
+        if (category.getPreferenceCount() == 0 && isShown(category)) {
+            screenRoot.removePreference(category);
+        }
+    }
+
+    /**
+     * Returns the row of an app, without walking the preference hierarchy.
+     */
+    protected AppSwitchPreference findAppPreference(String key) {
+        return mAppPreferences.get(key);
+    }
+
+    private void addAppPreference(Context context, AppListItem app) {
+        AppSwitchPreference pref = new AppSwitchPreference(context);
+        pref.setKey(app.getPackageName());
+        pref.setAppInfo(app.getKey(), app.getPackageName(), UserHandle.getUserId(app.getUid()),
+                app.getLastUpdateTime());
+        pref.setTitle(app.getLabel());
+        pref.setSortKey(app.getSortKey());
+        pref.setOnPreferenceChangeListener(this);
+        mAppPreferences.put(app.getKey(), pref);
+        showCategory(app.getAllowed()).addPreference(pref);
+        // Set after adding, attaching the row restores the value persisted for its key.
+        pref.setChecked(app.getAllowed());
+    }
+
+    // A row is always in the category matching its checked state, until it is switched.
+    private void removeAppPreference(AppSwitchPreference pref) {
+        if (pref != null) {
+            (pref.isChecked() ? categoryAllow : categoryDeny).removePreference(pref);
+        }
+    }
+
+    private void updateAppPreference(Context context, AppListItem app) {
+        AppSwitchPreference pref = findAppPreference(app.getKey());
+        if (pref == null) {
+            addAppPreference(context, app);
+            return;
+        }
+        pref.setAppInfo(app.getKey(), app.getPackageName(), UserHandle.getUserId(app.getUid()),
+                app.getLastUpdateTime());
+        if (pref.isChecked() == app.getAllowed() && app.getLabel().equals(pref.getTitle().toString())) {
+            return;
+        }
+        // Take the row out while it changes, so it gets sorted in again by label.
+        removeAppPreference(pref);
+        pref.setTitle(app.getLabel());
+        pref.setSortKey(app.getSortKey());
+        showCategory(app.getAllowed()).addPreference(pref);
+        pref.setChecked(app.getAllowed());
+    }
+
+    /**
+     * Moves a row the user just switched into the category matching its new state. The
+     * row is inserted at its sorted position, which the category finds by binary search,
+     * and the other category is only touched when it becomes empty.
+     */
+    protected void moveToCategory(Preference preference, boolean allowed) {
+        if (((AppSwitchPreference) preference).isChecked() == allowed) {
+            return;
+        }
+        PreferenceCategory from = allowed ? categoryDeny : categoryAllow;
+        from.removePreference(preference);
+        showCategory(allowed).addPreference(preference);
+        hideEmptyCategory(from);
+    }
+
+    /**
+     * Returns the change that applies the state the user switched an app to, or null if
+     * the persisted row state is all there is to it. The change is called on the write
+     * queue thread, so it must not touch the model.
+     */
+    protected abstract PolicyWriteQueue.Write createWrite(String key, boolean allowed);
+
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        writeAppAllowed(((AppSwitchPreference) preference).getAppKey(), (Boolean) newValue);
+        moveToCategory(preference, (Boolean) newValue);
+        return true;
+    }
+
+    @Override
+    public boolean onAppSwitched(String key, boolean allowed) {
+        final AppListItem app = getApp(key);
+        if (app == null) {
+            return false;
+        }
+        writeAppAllowed(key, allowed);
+        // The list rows are not preferences, persist the state like a switch row would.
+        getPreferenceManager().getSharedPreferences().edit()
+                .putBoolean(app.getPackageName(), allowed).apply();
+        return true;
+    }
+
+    // Returns the app of a row key in the last load shown, or null if it is gone.
+    private AppListItem getApp(String key) {
+        return mSnapshot != null ? mSnapshot.getApp(key) : null;
+    }
+
+    /**
+     * Publishes the change to the policy store and hands it to the write queue. The row
+     * already shows the new state, it is switched back if the change fails.
+     */
+    private void writeAppAllowed(final String key, final boolean allowed) {
+        final AppListItem app = getApp(key);
+        if (app == null) {
+            return;
+        }
+        final String packageName = app.getPackageName();
+        final int userId = UserHandle.getUserId(app.getUid());
+        final PolicyStore store = PolicyStore.get(getContext());
+        PolicyWriteQueue.Write write = createWrite(key, allowed);
+        if (write != null) {
+            // Taken now, the tab may be gone by the time the write fails.
+            final SharedPreferences prefs = getPreferenceManager().getSharedPreferences();
+            PolicyWriteQueue.get(getContext()).enqueue(write, new Runnable() {
+                @Override
+                public void run() {
+                    store.publish(mPolicy, packageName, userId, !allowed);
+                    prefs.edit().putBoolean(packageName, !allowed).apply();
+                    if (isAdded()) {
+                        revertAppAllowed(key, !allowed);
+                    }
+                }
+            });
+        }
+        // Published once queued, so the catalog keeps the change until it is written.
+        store.publish(mPolicy, packageName, userId, allowed);
+    }
+
+    private void revertAppAllowed(String key, boolean allowed) {
+        if (mListMode) {
+            if (mListAdapter != null) {
+                mListAdapter.setAllowed(key, allowed);
+            }
+            return;
+        }
+        AppSwitchPreference pref = findAppPreference(key);
+        if (pref != null) {
+            moveToCategory(pref, allowed);
+            pref.setChecked(allowed);
+        }
+    }
+
+    @Override
+    public void onSelectionChanged(int count) {
+        if (count == 0) {
+            if (mActionMode != null) {
+                mActionMode.finish();
+            }
+            return;
+        }
+        if (mActionMode == null) {
+            mActionMode = ((AppCompatActivity) getActivity()).startSupportActionMode(mSelectionCallback);
+        }
+        mActionMode.setTitle(getResources().getQuantityString(R.plurals.selected_count,
+                count, count));
+    }
+
+    private final ActionMode.Callback mSelectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.app_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            switch (item.getItemId()) {
+                case R.id.action_allow_selected:
+                case R.id.action_deny_selected:
+                    setAppsAllowed(mListAdapter.getSelectedKeys(),
+                            item.getItemId() == R.id.action_allow_selected);
+                    mode.finish();
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mActionMode = null;
+            mListAdapter.clearSelection();
+        }
+    };
+
+    /**
+     * Sets the index of the apps about to be applied. Call before {@link #applyChanges},
+     * the current query is run again on the new index.
+     */
+    protected void setSearchIndex(SearchIndex<?> index) {
+        mSearchIndex = index;
+        mSearchResult = null;
+        if (!TextUtils.isEmpty(mQuery)) {
+            applyQuery();
+        }
+    }
+
+    /**
+     * Only shows the apps matching {@code query}, or every app if it is empty. Search is
+     * only available in the list mode.
+     */
+    public void setQuery(String query) {
+        if (TextUtils.equals(mQuery, query)) {
+            return;
+        }
+        mQuery = query;
+        applyQuery();
+    }
+
+    private void applyQuery() {
+        if (!mListMode || mSearchIndex == null) {
+            return;
+        }
+        if (TextUtils.isEmpty(mQuery)) {
+            mSearchResult = null;
+            getListAdapter().setFilter(null);
+            return;
+        }
+        // Typing more narrows down the previous result instead of searching again.
+        mSearchResult = mSearchIndex.search(mQuery, mSearchResult);
+        getListAdapter().setFilter(mSearchResult.getKeys());
+    }
+
+    /**
+     * Switches every app of the tab to the given state, or only the apps matching the
+     * search if there is one.
+     */
+    public void setAllAppsAllowed(final boolean allowed) {
+        final ArrayList<String> keys = new ArrayList<>();
+        if (mSearchResult != null) {
+            keys.addAll(mSearchResult.getKeys());
+        } else if (mApps != null) {
+            for (AppListItem app : mApps) {
+                keys.add(app.getKey());
+            }
+        }
+        // Only ask about the apps that actually change.
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            if (isAppAllowed(keys.get(i)) == allowed) {
+                keys.remove(i);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        new AlertDialog.Builder(getContext())
+                .setTitle(allowed ? R.string.action_allow_all : R.string.action_deny_all)
+                .setMessage(getResources().getQuantityString(allowed
+                        ? R.plurals.allow_all_confirm : R.plurals.deny_all_confirm,
+                        keys.size(), keys.size()))
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (isAdded()) {
+                            setAppsAllowed(keys, allowed);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Switches a set of apps at once. The changes are published to the policy store
+     * together, so the rows move in one pass, and written in a single batch. The apps
+     * whose change failed are published back to their previous state.
+     */
+    private void setAppsAllowed(List<String> keys, final boolean allowed) {
+        ArrayMap<String, PolicyWriteQueue.Write> writes = new ArrayMap<>();
+        // Taken now, the tab may be gone by the time the batch is applied.
+        final SharedPreferences prefs = getPreferenceManager().getSharedPreferences();
+        SharedPreferences.Editor editor = prefs.edit();
+        final PolicyStore store = PolicyStore.get(getContext());
+        int count = 0;
+        // Map key -> app of the switched rows, to publish back the failed ones
+        final ArrayMap<String, AppListItem> apps = new ArrayMap<>();
+        for (String key : keys) {
+            final AppListItem app = getApp(key);
+            if (app == null || isAppAllowed(key) == allowed) {
+                continue;
+            }
+            count++;
+            apps.put(key, app);
+            editor.putBoolean(app.getPackageName(), allowed);
+            PolicyWriteQueue.Write write = createWrite(key, allowed);
+            if (write != null) {
+                writes.put(key, write);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        editor.apply();
+        PolicyWriteQueue.get(getContext()).applyBatch(writes,
+                new PolicyWriteQueue.OnBatchAppliedListener() {
+            @Override
+            public void onBatchApplied(List<String> failedKeys) {
+                if (failedKeys.isEmpty()) {
+                    return;
+                }
+                SharedPreferences.Editor editor = prefs.edit();
+                for (String key : failedKeys) {
+                    final AppListItem app = apps.get(key);
+                    editor.putBoolean(app.getPackageName(), !allowed);
+                    store.publish(mPolicy, app.getPackageName(),
+                            UserHandle.getUserId(app.getUid()), !allowed);
+                }
+                editor.apply();
+            }
+        });
+        // Published once queued, so the catalog keeps the changes until they are written.
+        for (int i = 0; i < apps.size(); i++) {
+            final AppListItem app = apps.valueAt(i);
+            store.publish(mPolicy, app.getPackageName(), UserHandle.getUserId(app.getUid()),
+                    allowed);
+        }
+    }
+
+    // Returns the state shown for an app, which includes switches still being written.
+    private boolean isAppAllowed(String key) {
+        if (mListMode) {
+            return mListAdapter != null && mListAdapter.isAllowed(key);
+        }
+        AppSwitchPreference pref = findAppPreference(key);
+        return pref != null && pref.isChecked();
+    }
+
+    private AppListAdapter getListAdapter() {
+        if (mListAdapter == null) {
+            mListAdapter = new AppListAdapter(getContext(), getString(mCurCategoryAllowResId),
+                    getString(mCurCategoryDenyResId), this);
+        }
+        return mListAdapter;
+    }
+
     protected void setLoading(boolean loading, boolean animate) {
         setLoading(loading, animate, false);
+        if (!loading && !mDrawn && getView() != null) {
+            mDrawn = true;
+            final View view = getView();
+            view.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    view.getViewTreeObserver().removeOnPreDrawListener(this);
+                    if (getActivity() instanceof OnTabDrawnListener) {
+                        ((OnTabDrawnListener) getActivity()).onTabDrawn(PermissionsFrameFragment.this);
+                    }
+                    return true;
+                }
+            });
+        }
     }
 
     private void setLoading(boolean loading, boolean animate, boolean force) {
@@ -132,13 +730,15 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
 
     @Override
     protected RecyclerView.Adapter<?> onCreateAdapter(PreferenceScreen preferenceScreen) {
-        final RecyclerView.Adapter<?> adapter = super.onCreateAdapter(preferenceScreen);
+        final RecyclerView.Adapter<?> adapter = mListMode ? getListAdapter()
+                : super.onCreateAdapter(preferenceScreen);
 
+        unregisterEmptyObserver();
         if (adapter != null) {
             final TextView emptyView = (TextView) getView().findViewById(R.id.no_apps);
             onSetEmptyText(emptyView);
             final RecyclerView recyclerView = getListView();
-            adapter.registerAdapterDataObserver(new AdapterDataObserver() {
+            mEmptyObserver = new AdapterDataObserver() {
                 @Override
                 public void onChanged() {
                     checkEmpty();
@@ -159,7 +759,9 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
                     emptyView.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
                     recyclerView.setVisibility(isEmpty ? View.GONE : View.VISIBLE);
                 }
-            });
+            };
+            mObservedAdapter = adapter;
+            adapter.registerAdapterDataObserver(mEmptyObserver);
 
             boolean isEmpty = adapter.getItemCount() == 0;
             emptyView.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
@@ -169,6 +771,14 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
         return adapter;
     }
 
+    private void unregisterEmptyObserver() {
+        if (mObservedAdapter != null) {
+            mObservedAdapter.unregisterAdapterDataObserver(mEmptyObserver);
+            mObservedAdapter = null;
+            mEmptyObserver = null;
+        }
+    }
+
     /**
      * Hook for subclasses to change the default text of the empty view.
      * Base implementation leaves the default empty view text.
@@ -177,5 +787,13 @@ public abstract class PermissionsFrameFragment extends PreferenceFragment {
      */
     protected void onSetEmptyText(TextView textView) {
     }
+
+    /**
+     * Implemented by the activity hosting the tabs, to learn when a tab drew its loaded
+     * content for the first time.
+     */
+    public interface OnTabDrawnListener {
+        void onTabDrawn(PermissionsFrameFragment fragment);
+    }
 }
 
@@ -24,10 +24,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
-import android.support.v14.preference.SwitchPreference;
-import android.support.v7.preference.Preference;
-import android.support.v7.preference.PreferenceCategory;
-import android.support.v7.preference.PreferenceScreen;
+import android.util.ArraySet;
 import android.view.View;
 import android.widget.TextView;
 
@@ -35,29 +32,22 @@ import com.android.internal.app.IAppOpsService;
 import com.mokee.aegis.R;
 import com.mokee.aegis.WardenInfo.PackageInfo;
 import com.mokee.aegis.WardenUtils;
+import com.mokee.aegis.model.AppListModel;
+import com.mokee.aegis.model.AppListModel.Callback;
 import com.mokee.aegis.model.WardenApps;
-import com.mokee.aegis.model.WardenApps.Callback;
-import com.mokee.aegis.model.WardenApps.WardenApp;
 import com.mokee.aegis.receiver.PackagesMonitor;
-import com.mokee.aegis.utils.PmCache;
+import com.mokee.aegis.utils.PolicyWriteQueue;
 
-public final class WardenAppsFragment extends PermissionsFrameFragment implements Callback, Preference.OnPreferenceChangeListener {
+import java.util.Map;
+
+public final class WardenAppsFragment extends PermissionsFrameFragment implements Callback {
 
     private static final String TAG = WardenAppsFragment.class.getName();
-    private static final String PREF_CATEGORY_ALLOW_KEY = "pref_category_allow_key";
-    private static final String PREF_CATEGORY_DENY_KEY = "pref_category_deny_key";
 
     IBinder iBinder = ServiceManager.getService(Context.APP_OPS_SERVICE);
     private final IAppOpsService mAppOps = IAppOpsService.Stub.asInterface(iBinder);
     private WardenApps mWardenApps;
 
-    private PreferenceScreen screenRoot;
-    private PreferenceCategory categoryAllow;
-    private PreferenceCategory categoryDeny;
-
-    private int mCurCategoryAllowResId;
-    private int mCurCategoryDenyResId;
-
     public static Fragment newInstance() {
         return setPermissionName(new WardenAppsFragment());
     }
@@ -74,14 +64,15 @@ public final class WardenAppsFragment extends PermissionsFrameFragment implement
         setLoading(true /* loading */, false /* animate */);
         mCurCategoryAllowResId = R.string.warden_allow_list_category_title;
         mCurCategoryDenyResId = R.string.warden_deny_list_category_title;
-        mWardenApps = new WardenApps(getActivity(), this, PmCache.getPmCache(getContext()), mAppOps);
-        mWardenApps.refresh();
+        mPolicy = PackagesMonitor.PREF_WARDEN;
+        mWardenApps = new WardenApps(getActivity(), this);
+        setModel(mWardenApps);
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        mWardenApps.refresh();
+    public void onDestroy() {
+        super.onDestroy();
+        mWardenApps.cancel();
     }
 
     @Override
@@ -95,106 +86,56 @@ public final class WardenAppsFragment extends PermissionsFrameFragment implement
     }
 
     @Override
-    public void onWardenAppsLoaded(WardenApps wardenApps) {
-
-        getPreferenceManager().setSharedPreferencesName(PackagesMonitor.PREF_WARDEN);
-        Context mContext = getPreferenceManager().getContext();
-
-        if (mContext == null) {
-            return;
-        }
-
-        screenRoot = getPreferenceScreen();
-
-        categoryAllow = (PreferenceCategory) screenRoot.findPreference(PREF_CATEGORY_ALLOW_KEY);
-        if (categoryAllow == null) {
-            categoryAllow = new PreferenceCategory(mContext);
-            categoryAllow.setKey(PREF_CATEGORY_ALLOW_KEY);
-            categoryAllow.setTitle(mCurCategoryAllowResId);
-            screenRoot.addPreference(categoryAllow);
-        }
-
-        categoryDeny = (PreferenceCategory) screenRoot.findPreference(PREF_CATEGORY_DENY_KEY);
-        if (categoryDeny == null) {
-            categoryDeny = new PreferenceCategory(mContext);
-            categoryDeny.setKey(PREF_CATEGORY_DENY_KEY);
-            categoryDeny.setTitle(mCurCategoryDenyResId);
-            screenRoot.addPreference(categoryDeny);
-        }
+    public void onAppsLoaded(AppListModel model) {
+        onModelLoaded(model.getSnapshot());
+    }
 
-        if (wardenApps.getApps().size() != 0) {
-            for (final WardenApp app : wardenApps.getApps()) {
-                String key = app.getKey();
-                SwitchPreference existingPref = (SwitchPreference) screenRoot.findPreference(key);
-                if (existingPref != null) {
-                    existingPref.setChecked(app.getAllowed());
-                    continue;
-                }
-                SwitchPreference pref = new SwitchPreference(mContext);
-                pref.setKey(key);
-                pref.setIcon(app.getIcon());
-                pref.setTitle(app.getLabel());
-                pref.setChecked(app.getAllowed());
-                pref.setOnPreferenceChangeListener(this);
-                if (pref.isChecked()) {
-                    categoryAllow.addPreference(pref);
-                } else {
-                    categoryDeny.addPreference(pref);
+    // Packages having a warden entry for the user, read once per write pass
+    private final PolicyWriteQueue.SharedRead<ArraySet<String>> mWardenPackages =
+            new PolicyWriteQueue.SharedRead<ArraySet<String>>() {
+        @Override
+        public ArraySet<String> read() {
+            final ArraySet<String> packages = new ArraySet<>();
+            try {
+                Map<String, PackageInfo> info = mAppOps.getWardenInfo(UserHandle.myUserId());
+                if (info != null) {
+                    for (Map.Entry<String, PackageInfo> entry : info.entrySet()) {
+                        if (entry.getValue().getUidsInfo().get(UserHandle.myUserId()) != null) {
+                            packages.add(entry.getKey());
+                        }
+                    }
                 }
+            } catch (RemoteException e) {
             }
-            if (categoryAllow.getPreferenceCount() == 0) {
-                screenRoot.removePreference(categoryAllow);
-            }
-            if (categoryDeny.getPreferenceCount() == 0) {
-                screenRoot.removePreference(categoryDeny);
-            }
-        } else {
-            screenRoot.removeAll();
+            return packages;
         }
-
-        setLoading(false /* loading */, true /* animate */);
-    }
+    };
 
     @Override
-    public boolean onPreferenceChange(Preference preference, Object newValue) {
-        WardenApp app = mWardenApps.getApp(preference.getKey());
-        try {
-            try {
-                ((PackageInfo)mAppOps.getWardenInfo(UserHandle.myUserId()).get(app.getKey())).getUidsInfo().get(UserHandle.myUserId()).getUid();
-            } catch (NullPointerException e) {
-                mAppOps.addWardenPackageInfo(UserHandle.myUserId(), app.getKey(), UserHandle.myUserId());
-            }
-            mAppOps.updateWardenModeFromUid(UserHandle.myUserId(), app.getKey(),
-                    UserHandle.myUserId(), (Boolean) newValue ? WardenUtils.MODE_ALLOWED : WardenUtils.MODE_ERRORED);
-        } catch (RemoteException e) {
-            return false;
-        }
-        if (!(Boolean) newValue) {
-            categoryAllow.removePreference(preference);
-            categoryDeny.addPreference(preference);
-        } else {
-            categoryDeny.removePreference(preference);
-            categoryAllow.addPreference(preference);
+    protected PolicyWriteQueue.Write createWrite(String key, final boolean allowed) {
+        final AppListModel.App app = mWardenApps.getApp(key);
+        if (app == null) {
+            // Gone since the last load, the next one drops its row.
+            return null;
         }
-        if (categoryAllow.getPreferenceCount() == 0) {
-            screenRoot.removePreference(categoryAllow);
-        } else {
-            if (screenRoot.findPreference(PREF_CATEGORY_ALLOW_KEY) == null || categoryAllow.getPreferenceCount() == 1 && (Boolean) newValue) {
-                screenRoot.addPreference(categoryAllow);
-                if (screenRoot.findPreference(PREF_CATEGORY_DENY_KEY) != null) {
-                    screenRoot.removePreference(categoryDeny);
-                    screenRoot.addPreference(categoryDeny);
+        final String packageName = app.getPackageName();
+        return new PolicyWriteQueue.Write() {
+            @Override
+            public boolean apply(PolicyWriteQueue.Batch batch) {
+                try {
+                    final ArraySet<String> wardenPackages = batch.get(mWardenPackages);
+                    if (!wardenPackages.contains(packageName)) {
+                        mAppOps.addWardenPackageInfo(UserHandle.myUserId(), packageName, UserHandle.myUserId());
+                        wardenPackages.add(packageName);
+                    }
+                    mAppOps.updateWardenModeFromUid(UserHandle.myUserId(), packageName,
+                            UserHandle.myUserId(), allowed ? WardenUtils.MODE_ALLOWED : WardenUtils.MODE_ERRORED);
+                } catch (RemoteException e) {
+                    return false;
                 }
+                return true;
             }
-        }
-        if (categoryDeny.getPreferenceCount() == 0) {
-            screenRoot.removePreference(categoryDeny);
-        } else {
-            if (screenRoot.findPreference(PREF_CATEGORY_DENY_KEY) == null) {
-                screenRoot.addPreference(categoryDeny);
-            }
-        }
-        return true;
+        };
     }
 
 }
@@ -0,0 +1,745 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.app.IAppOpsService;
+import com.mokee.aegis.PacifierInfo;
+import com.mokee.aegis.PacifierUtils;
+import com.mokee.aegis.WardenInfo;
+import com.mokee.aegis.WardenUtils;
+import com.mokee.aegis.receiver.PackagesMonitor;
+import com.mokee.aegis.utils.AppSnapshotStore;
+import com.mokee.aegis.utils.LabelCollator;
+import com.mokee.aegis.utils.ParallelLoader;
+import com.mokee.aegis.utils.ParallelLoader.ProfileTask;
+import com.mokee.aegis.utils.PmCache;
+import com.mokee.aegis.utils.PolicyWriteQueue;
+import com.mokee.utils.PackageUtils;
+
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single pass over the installed packages that collects, for every app, the autorun,
+ * wakelock, warden, hibernate and pacifier state in one {@link AppRecord}. The tab models
+ * are views over the records of the catalog, so the five tabs share one scan.
+ */
+public class AppCatalog {
+    private static final String LOG_TAG = "AppCatalog";
+    private static final ArraySet<String> WHITE_LIST = new ArraySet<>();
+
+    // Map op -> permission an app has to request for the op to be managed
+    private static final SparseArray<String> MANAGED_OPS = new SparseArray<>();
+
+    private static final int[] MANAGED_OP_CODES;
+
+    static {
+        WHITE_LIST.add("com.cyanogenmod.lockclock");
+        MANAGED_OPS.put(AppOpsManager.OP_BOOT_COMPLETED, Manifest.permission.RECEIVE_BOOT_COMPLETED);
+        MANAGED_OPS.put(AppOpsManager.OP_WAKE_LOCK, Manifest.permission.WAKE_LOCK);
+        MANAGED_OP_CODES = new int[MANAGED_OPS.size()];
+        for (int i = 0; i < MANAGED_OPS.size(); i++) {
+            MANAGED_OP_CODES[i] = MANAGED_OPS.keyAt(i);
+        }
+    }
+
+    private static AppCatalog sInstance;
+
+    private final Context mContext;
+    private final PmCache mCache;
+    private final AppSnapshotStore mSnapshots;
+    private final AppOpsManager mAppOpsManager;
+    private final IAppOpsService mAppOps;
+    private final SharedPreferences mHibernatePrefs;
+    private final PolicyWriteQueue mWriteQueue;
+
+    // Volatile since the op watcher reads it without taking the lock
+    private volatile List<AppRecord> mRecords;
+    private long mScanTime;
+    // Locale the sort keys of the records were built for
+    private volatile Locale mScanLocale;
+    private boolean mLabelsResolved;
+    // Set when a policy or package changed, forces the next getRecords() to rescan
+    private volatile boolean mStale;
+    // Binder calls made to the app ops service by the current or last scan
+    private final AtomicInteger mBinderCalls = new AtomicInteger();
+    // Policy changes the system may not have yet, in publish order, guarded by itself.
+    // The first mAppliedDeltas of them are already applied to the records.
+    private final ArrayList<PolicyStore.Delta> mDeltas = new ArrayList<>();
+    private int mAppliedDeltas;
+    // Set once the mode watchers of the managed ops are registered
+    private volatile boolean mWatchingOps;
+
+    private final AppOpsManager.OnOpChangedInternalListener mOpWatcher =
+            new AppOpsManager.OnOpChangedInternalListener() {
+        @Override
+        public void onOpChanged(int op, String packageName) {
+            onOpModeChanged(op, packageName);
+        }
+    };
+
+    // Package changes of every profile, registered for as long as the process lives
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String packageName = intent.getData() != null
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            if (TextUtils.isEmpty(packageName)) {
+                return;
+            }
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            final int userId = uid >= 0 ? UserHandle.getUserId(uid) : getSendingUserId();
+            mCache.invalidatePackage(packageName, userId);
+            invalidate();
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // Drop the app from the open tabs now, the rescan only happens on their
+                // next refresh.
+                PolicyStore.get(mContext).publishRemoved(packageName, userId);
+            }
+        }
+    };
+
+    private AppCatalog(Context context) {
+        mContext = context;
+        mCache = PmCache.getPmCache(context);
+        mCache.requestFlags(PackageManager.GET_PERMISSIONS);
+        mSnapshots = AppSnapshotStore.get(context);
+        mAppOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        IBinder iBinder = ServiceManager.getService(Context.APP_OPS_SERVICE);
+        mAppOps = IAppOpsService.Stub.asInterface(iBinder);
+        mHibernatePrefs = context.getSharedPreferences(PackagesMonitor.PREF_HIBERNATE, Context.MODE_PRIVATE);
+        mWriteQueue = PolicyWriteQueue.get(context);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    public static synchronized AppCatalog get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers for the mode changes of the managed ops, made by Aegis or anyone else.
+     * The new mode of the one package a change is about is read back and published to
+     * the {@link PolicyStore}, so once watching, refreshes no longer read the op modes of
+     * every app. The watchers live as long as the process.
+     * Must be called on the main thread.
+     */
+    public void startWatchingOps() {
+        if (mWatchingOps) {
+            return;
+        }
+        for (int op : MANAGED_OP_CODES) {
+            mAppOpsManager.startWatchingMode(op, null, mOpWatcher);
+        }
+        mWatchingOps = true;
+    }
+
+    // Called on a binder thread, only costs one mode check per profile of the package.
+    private void onOpModeChanged(int op, String packageName) {
+        final List<AppRecord> records = mRecords;
+        if (records == null || packageName == null) {
+            // Nothing scanned yet, the first scan reads the mode anyway.
+            return;
+        }
+        final PolicyStore store = PolicyStore.get(mContext);
+        for (AppRecord record : records) {
+            if (record.getPackageName().equals(packageName) && record.isOpRequested(op)) {
+                final int mode = mAppOpsManager.checkOpNoThrow(op, record.getUid(), packageName);
+                store.publish(PolicyStore.getOpPolicy(op), packageName, record.getUserId(),
+                        AppOpsManager.MODE_ALLOWED == mode);
+            }
+        }
+    }
+
+    /**
+     * Returns the records of every managed app, sorted by label. The packages are only
+     * scanned again if the last scan started before {@code requestTime}, so refreshes
+     * requested by several tabs at the same time share one scan. Once the op watchers are
+     * registered, an old scan only has its warden, pacifier and hibernate state read
+     * again, the packages are rescanned when {@link #invalidate}d. A locale change always
+     * causes a scan, since labels and their sort keys depend on it.
+     * Must not be called on the main thread.
+     */
+    public synchronized List<AppRecord> getRecords(long requestTime) {
+        final Locale locale = Locale.getDefault();
+        if (mRecords != null && !mStale && locale.equals(mScanLocale)
+                && mWatchingOps && mScanTime < requestTime) {
+            final long writtenTime = mWriteQueue.getWrittenTime();
+            refreshPolicies();
+            replayDeltas(writtenTime, false);
+        } else if (mRecords == null || mStale || mScanTime < requestTime
+                || !locale.equals(mScanLocale)) {
+            final long writtenTime = mWriteQueue.getWrittenTime();
+            mStale = false;
+            mScanTime = SystemClock.elapsedRealtime();
+            mScanLocale = locale;
+            mBinderCalls.set(0);
+            // Warden modes are kept for the calling user only, fetch them once for all profiles.
+            final Map<String, WardenInfo.PackageInfo> wardenInfo = getWardenInfo();
+            final ArrayMap<String, SparseIntArray> opModes = getOpModes();
+            mRecords = ParallelLoader.loadProfiles(mContext, LOG_TAG, new ProfileTask<AppRecord>() {
+                @Override
+                public List<AppRecord> load(int userId) {
+                    return loadRecords(userId, wardenInfo, opModes);
+                }
+            });
+            mLabelsResolved = !hasUnresolvedLabels(mRecords);
+            Log.d(LOG_TAG, "Scan made " + mBinderCalls.get() + " app ops binder calls, kept "
+                    + mRecords.size() + " records of about " + getAverageRecordSize(mRecords)
+                    + " bytes");
+            pruneSnapshots(mRecords);
+            replayDeltas(writtenTime, true);
+        }
+        applyPendingDeltas();
+        return mRecords;
+    }
+
+    // Reads the warden, pacifier and hibernate state of the records again, one binder call
+    // per profile. The packages and op modes are kept current by invalidate() and the op
+    // watchers, the other policies have no watcher and can change outside Aegis.
+    private void refreshPolicies() {
+        mScanTime = SystemClock.elapsedRealtime();
+        mBinderCalls.set(0);
+        final Map<String, WardenInfo.PackageInfo> wardenInfo = getWardenInfo();
+        final SparseArray<Map<String, PacifierInfo.PackageInfo>> pacifierInfos =
+                new SparseArray<>();
+        final ArrayList<AppRecord> records = new ArrayList<>(mRecords.size());
+        for (AppRecord record : mRecords) {
+            final int userId = record.getUserId();
+            if (pacifierInfos.indexOfKey(userId) < 0) {
+                pacifierInfos.put(userId, getPacifierInfo(userId));
+            }
+            records.add(record.withPolicyFlags(getPolicyFlags(record.getPackageName(),
+                    userId, wardenInfo, pacifierInfos.get(userId))));
+        }
+        mRecords = records;
+        Log.d(LOG_TAG, "Policy refresh made " + mBinderCalls.get() + " app ops binder calls");
+    }
+
+    /**
+     * Marks the records as out of date, the next {@link #getRecords} call rescans whatever
+     * its request time. Does not block, so it can be called after a write on the main thread.
+     */
+    public void invalidate() {
+        mStale = true;
+    }
+
+    /**
+     * Resolves the labels that were not in the app snapshot yet, one profile per thread,
+     * and returns the updated records. Records don't keep their {@link ApplicationInfo},
+     * it is taken from the package cache the scan read.
+     */
+    public synchronized List<AppRecord> resolveLabels() {
+        if (mLabelsResolved) {
+            applyPendingDeltas();
+            return mRecords;
+        }
+        final List<AppRecord> records = mRecords;
+        mRecords = ParallelLoader.loadProfiles(mContext, LOG_TAG, new ProfileTask<AppRecord>() {
+            @Override
+            public List<AppRecord> load(int userId) {
+                ArrayMap<String, ApplicationInfo> infos = new ArrayMap<>();
+                for (PackageInfo info : mCache.getPackages(userId, PackageManager.GET_PERMISSIONS)) {
+                    infos.put(info.packageName, info.applicationInfo);
+                }
+                ArrayList<AppRecord> resolved = new ArrayList<>();
+                for (AppRecord record : records) {
+                    if (record.getUserId() != userId) {
+                        continue;
+                    }
+                    ApplicationInfo info = infos.get(record.getPackageName());
+                    if (!record.isLabelResolved() && info != null) {
+                        AppSnapshotStore.Entry entry = mSnapshots.resolve(info,
+                                record.getLastUpdateTime());
+                        record = record.withLabel(entry.getLabel(), entry.getSortKey());
+                    }
+                    resolved.add(record);
+                }
+                return resolved;
+            }
+        });
+        mLabelsResolved = true;
+        mSnapshots.save();
+        applyPendingDeltas();
+        return mRecords;
+    }
+
+    /**
+     * Queues a policy change for the records. Does not block, the change is applied by the
+     * next {@link #getRecords} or {@link #resolveLabels} call. It is kept until the system
+     * has it, so it also holds over a scan that read the state from before its write.
+     */
+    void applyDelta(PolicyStore.Delta delta) {
+        synchronized (mDeltas) {
+            mDeltas.add(delta);
+        }
+    }
+
+    // Called after the records were read again from the system. Drops the deltas the
+    // system already had when the read started, see PolicyWriteQueue.getWrittenTime(),
+    // and has the others applied again. A policy refresh keeps the op modes and packages
+    // of the records, so only the deltas already applied to them are dropped. A scan reads
+    // the packages itself, a removal is never replayed over a package it found: if that
+    // package was removed while the scan ran, the catalog was invalidated again.
+    private void replayDeltas(long writtenTime, boolean rescanned) {
+        synchronized (mDeltas) {
+            for (int i = mDeltas.size() - 1; i >= 0; i--) {
+                final PolicyStore.Delta delta = mDeltas.get(i);
+                if ((delta.getTime() < writtenTime && (rescanned || i < mAppliedDeltas))
+                        || (rescanned && delta.isRemoval())) {
+                    mDeltas.remove(i);
+                }
+            }
+            mAppliedDeltas = 0;
+        }
+    }
+
+    // Patches the records with the deltas not applied yet, in one pass over the records.
+    // Applied deltas the system has by now are dropped, the next scan reads their state.
+    private void applyPendingDeltas() {
+        final long writtenTime = mWriteQueue.getWrittenTime();
+        final ArrayMap<String, ArrayList<PolicyStore.Delta>> deltas = new ArrayMap<>();
+        synchronized (mDeltas) {
+            for (int i = mAppliedDeltas - 1; i >= 0; i--) {
+                if (mDeltas.get(i).getTime() < writtenTime) {
+                    mDeltas.remove(i);
+                    mAppliedDeltas--;
+                }
+            }
+            if (mAppliedDeltas == mDeltas.size()) {
+                return;
+            }
+            for (int i = mAppliedDeltas; i < mDeltas.size(); i++) {
+                final PolicyStore.Delta delta = mDeltas.get(i);
+                ArrayList<PolicyStore.Delta> packageDeltas = deltas.get(delta.getPackageName());
+                if (packageDeltas == null) {
+                    packageDeltas = new ArrayList<>();
+                    deltas.put(delta.getPackageName(), packageDeltas);
+                }
+                packageDeltas.add(delta);
+            }
+            mAppliedDeltas = mDeltas.size();
+        }
+        if (mRecords == null) {
+            return;
+        }
+        final ArrayList<AppRecord> records = new ArrayList<>(mRecords.size());
+        for (AppRecord record : mRecords) {
+            final ArrayList<PolicyStore.Delta> packageDeltas = deltas.get(record.getPackageName());
+            if (packageDeltas != null) {
+                for (int i = 0; record != null && i < packageDeltas.size(); i++) {
+                    record = record.apply(packageDeltas.get(i));
+                }
+            }
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        mRecords = records;
+    }
+
+    // Drops the stored labels and icons of the apps the scan did not find anymore.
+    private void pruneSnapshots(List<AppRecord> records) {
+        SparseArray<ArraySet<String>> packages = new SparseArray<>();
+        for (AppRecord record : records) {
+            ArraySet<String> userPackages = packages.get(record.getUserId());
+            if (userPackages == null) {
+                userPackages = new ArraySet<>();
+                packages.put(record.getUserId(), userPackages);
+            }
+            userPackages.add(record.getPackageName());
+        }
+        mSnapshots.retain(packages);
+        mSnapshots.save();
+    }
+
+    private static int getAverageRecordSize(List<AppRecord> records) {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        long size = 0;
+        for (AppRecord record : records) {
+            size += record.estimateSize();
+        }
+        return (int) (size / records.size());
+    }
+
+    static boolean hasUnresolvedLabels(List<AppRecord> records) {
+        for (AppRecord record : records) {
+            if (!record.isLabelResolved()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, WardenInfo.PackageInfo> getWardenInfo() {
+        try {
+            mBinderCalls.incrementAndGet();
+            return mAppOps.getWardenInfo(UserHandle.myUserId());
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    private Map<String, PacifierInfo.PackageInfo> getPacifierInfo(int userId) {
+        try {
+            mBinderCalls.incrementAndGet();
+            return mAppOps.getPacifierInfo(userId);
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the modes of the managed ops for every package in one binder call. Only
+     * packages whose mode differs from the default are returned, the others use
+     * {@link AppOpsManager#opToDefaultMode}. Returns null if the batch query failed, the
+     * scan then falls back to checking every package on its own.
+     * <p>
+     * Modes set for a whole uid are not part of the batch result, those are only honoured
+     * by the fallback path.
+     */
+    private ArrayMap<String, SparseIntArray> getOpModes() {
+        List<AppOpsManager.PackageOps> packageOps;
+        try {
+            mBinderCalls.incrementAndGet();
+            packageOps = mAppOpsManager.getPackagesForOps(MANAGED_OP_CODES);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to read op modes in bulk, checking packages one by one", e);
+            return null;
+        }
+        // Map (pkg|uid) -> (op -> mode)
+        ArrayMap<String, SparseIntArray> opModes = new ArrayMap<>();
+        if (packageOps != null) {
+            for (AppOpsManager.PackageOps ops : packageOps) {
+                SparseIntArray modes = new SparseIntArray();
+                for (AppOpsManager.OpEntry entry : ops.getOps()) {
+                    modes.put(entry.getOp(), entry.getMode());
+                }
+                opModes.put(getOpKey(ops.getPackageName(), ops.getUid()), modes);
+            }
+        }
+        return opModes;
+    }
+
+    private int getOpMode(ArrayMap<String, SparseIntArray> opModes, int op, ApplicationInfo info) {
+        if (opModes == null) {
+            mBinderCalls.incrementAndGet();
+            return mAppOpsManager.checkOp(op, info.uid, info.packageName);
+        }
+        SparseIntArray modes = opModes.get(getOpKey(info.packageName, info.uid));
+        return modes != null ? modes.get(op, AppOpsManager.opToDefaultMode(op))
+                : AppOpsManager.opToDefaultMode(op);
+    }
+
+    private static String getOpKey(String packageName, int uid) {
+        return packageName + '|' + uid;
+    }
+
+    private List<AppRecord> loadRecords(int userId, Map<String, WardenInfo.PackageInfo> wardenInfo,
+            ArrayMap<String, SparseIntArray> opModes) {
+        ArrayList<AppRecord> records = new ArrayList<>();
+        List<PackageInfo> apps = mCache.getPackages(userId, PackageManager.GET_PERMISSIONS);
+        Map<String, ArraySet<String>> permissionIndex = mCache.getPermissionIndex(userId);
+        // Packages requesting the permission of each managed op, in MANAGED_OPS order
+        ArrayList<ArraySet<String>> opRequesters = new ArrayList<>(MANAGED_OPS.size());
+        for (int index = 0; index < MANAGED_OPS.size(); index++) {
+            opRequesters.add(permissionIndex.get(MANAGED_OPS.valueAt(index)));
+        }
+        Map<String, PacifierInfo.PackageInfo> pacifierInfo = getPacifierInfo(userId);
+        for (PackageInfo app : apps) {
+            final boolean system = PackageUtils.isSystem(app.applicationInfo);
+            final boolean whiteListed = system && WHITE_LIST.contains(app.packageName);
+            if (system && !whiteListed) {
+                continue;
+            }
+
+            int flags = system ? AppRecord.FLAG_SYSTEM : 0;
+            for (int index = 0; index < MANAGED_OPS.size(); index++) {
+                ArraySet<String> requesters = opRequesters.get(index);
+                if (requesters != null && requesters.contains(app.packageName)) {
+                    int op = MANAGED_OPS.keyAt(index);
+                    int mode = getOpMode(opModes, op, app.applicationInfo);
+                    flags |= AppRecord.getOpFlag(index, false);
+                    if (AppOpsManager.MODE_ALLOWED == mode) {
+                        flags |= AppRecord.getOpFlag(index, true);
+                    }
+                }
+            }
+
+            flags |= getPolicyFlags(app.packageName, userId, wardenInfo, pacifierInfo);
+
+            // Use the stored label for now, missing ones are resolved in a second pass.
+            AppSnapshotStore.Entry entry = mSnapshots.getEntry(app, userId);
+            if (entry != null) {
+                flags |= AppRecord.FLAG_LABEL_RESOLVED;
+            }
+            records.add(new AppRecord(app.packageName.intern(),
+                    entry != null ? entry.getLabel() : app.packageName,
+                    entry != null ? entry.getSortKey() : LabelCollator.getCollationKey(app.packageName),
+                    app.lastUpdateTime, app.applicationInfo.uid, flags));
+        }
+        return records;
+    }
+
+    // Returns the warden, pacifier and hibernate bits of a package in a profile.
+    private int getPolicyFlags(String packageName, int userId,
+            Map<String, WardenInfo.PackageInfo> wardenInfo,
+            Map<String, PacifierInfo.PackageInfo> pacifierInfo) {
+        int flags = 0;
+        // Apps without a warden entry are allowed to run.
+        boolean wardenAllowed = true;
+        WardenInfo.PackageInfo warden = wardenInfo != null ? wardenInfo.get(packageName) : null;
+        if (warden != null && warden.getUidsInfo().get(UserHandle.myUserId()) != null) {
+            wardenAllowed = warden.getUidsInfo().get(UserHandle.myUserId()).getMode() == WardenUtils.MODE_ALLOWED;
+        }
+        if (wardenAllowed) {
+            flags |= AppRecord.FLAG_WARDEN_ALLOWED;
+        }
+
+        PacifierInfo.PackageInfo pacifier = pacifierInfo != null ? pacifierInfo.get(packageName) : null;
+        if (pacifier != null && pacifier.getUidsInfo().get(userId) != null) {
+            flags |= AppRecord.FLAG_HAS_PACIFIER;
+            if (pacifier.getUidsInfo().get(userId).getMode() == PacifierUtils.MODE_ALLOWED) {
+                flags |= AppRecord.FLAG_PACIFIER_ALLOWED;
+            }
+        }
+
+        if (mHibernatePrefs.getBoolean(packageName, false)) {
+            flags |= AppRecord.FLAG_HIBERNATE;
+        }
+        return flags;
+    }
+
+    /**
+     * State of one app across every policy managed by Aegis. Records are shared by all the
+     * tabs and kept small: the package name is interned, the label and its sort key are
+     * the ones of the app snapshot, every policy state is a bit of one int, and the
+     * {@link ApplicationInfo} the record was built from is not retained.
+     */
+    public static class AppRecord implements Comparable<AppRecord> {
+        private static final int FLAG_SYSTEM = 1 << 0;
+        private static final int FLAG_LABEL_RESOLVED = 1 << 1;
+        private static final int FLAG_WARDEN_ALLOWED = 1 << 2;
+        private static final int FLAG_HIBERNATE = 1 << 3;
+        private static final int FLAG_HAS_PACIFIER = 1 << 4;
+        private static final int FLAG_PACIFIER_ALLOWED = 1 << 5;
+        // Bits read by getPolicyFlags()
+        private static final int POLICY_FLAGS = FLAG_WARDEN_ALLOWED | FLAG_HIBERNATE
+                | FLAG_HAS_PACIFIER | FLAG_PACIFIER_ALLOWED;
+        // Each managed op takes two bits from here on, requested then allowed, in
+        // MANAGED_OPS order
+        private static final int FLAG_OP_SHIFT = 6;
+
+        // Object header, three references, a long and two ints
+        private static final int SHALLOW_SIZE = 8 + 3 * 4 + 8 + 2 * 4;
+        // Object header, the char array reference, hash and the array header
+        private static final int STRING_OVERHEAD = 8 + 4 + 4 + 12;
+
+        private final String mPackageName;
+        private final String mLabel;
+        private final CollationKey mSortKey;
+        private final long mLastUpdateTime;
+        private final int mUid;
+        private final int mFlags;
+
+        private AppRecord(String packageName, String label, CollationKey sortKey,
+                long lastUpdateTime, int uid, int flags) {
+            mPackageName = packageName;
+            mLabel = label;
+            mSortKey = sortKey;
+            mLastUpdateTime = lastUpdateTime;
+            mUid = uid;
+            mFlags = flags;
+        }
+
+        AppRecord withLabel(String label, CollationKey sortKey) {
+            return new AppRecord(mPackageName, label, sortKey, mLastUpdateTime, mUid,
+                    mFlags | FLAG_LABEL_RESOLVED);
+        }
+
+        // Returns the record with its warden, pacifier and hibernate bits replaced.
+        AppRecord withPolicyFlags(int policyFlags) {
+            final int flags = (mFlags & ~POLICY_FLAGS) | policyFlags;
+            if (flags == mFlags) {
+                return this;
+            }
+            return new AppRecord(mPackageName, mLabel, mSortKey, mLastUpdateTime, mUid, flags);
+        }
+
+        private static int getOpFlag(int index, boolean allowed) {
+            return 1 << (FLAG_OP_SHIFT + 2 * index + (allowed ? 1 : 0));
+        }
+
+        /**
+         * Returns the record patched with a policy change, or null if the change removed
+         * the app. Changes about another app, or a policy the record does not hold, return
+         * the record itself.
+         */
+        public AppRecord apply(PolicyStore.Delta delta) {
+            if (!delta.appliesTo(mPackageName, mUid)) {
+                return this;
+            }
+            if (delta.isRemoval()) {
+                return null;
+            }
+            final int flag = getPolicyFlag(delta.getPolicy());
+            final int flags = delta.isAllowed() ? mFlags | flag : mFlags & ~flag;
+            if (flag == 0 || flags == mFlags) {
+                return this;
+            }
+            return new AppRecord(mPackageName, mLabel, mSortKey, mLastUpdateTime, mUid, flags);
+        }
+
+        // Returns the bit holding the allowed state of a policy, 0 for an unknown policy.
+        private static int getPolicyFlag(String policy) {
+            if (PackagesMonitor.PREF_WARDEN.equals(policy)) {
+                return FLAG_WARDEN_ALLOWED;
+            } else if (PackagesMonitor.PREF_HIBERNATE.equals(policy)) {
+                return FLAG_HIBERNATE;
+            } else if (PackagesMonitor.PREF_PACIFIER.equals(policy)) {
+                return FLAG_PACIFIER_ALLOWED;
+            }
+            for (int index = 0; index < MANAGED_OPS.size(); index++) {
+                if (PolicyStore.getOpPolicy(MANAGED_OPS.keyAt(index)).equals(policy)) {
+                    return getOpFlag(index, true);
+                }
+            }
+            return 0;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getUserId() {
+            return UserHandle.getUserId(mUid);
+        }
+
+        public int getUid() {
+            return mUid;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /**
+         * Returns the collation key of the label, built once with the label.
+         */
+        public CollationKey getSortKey() {
+            return mSortKey;
+        }
+
+        public boolean isLabelResolved() {
+            return (mFlags & FLAG_LABEL_RESOLVED) != 0;
+        }
+
+        public long getLastUpdateTime() {
+            return mLastUpdateTime;
+        }
+
+        public boolean isSystem() {
+            return (mFlags & FLAG_SYSTEM) != 0;
+        }
+
+        /**
+         * Returns whether the app requests the permission of a managed op.
+         */
+        public boolean isOpRequested(int op) {
+            final int index = MANAGED_OPS.indexOfKey(op);
+            return index >= 0 && (mFlags & getOpFlag(index, false)) != 0;
+        }
+
+        public boolean isOpAllowed(int op) {
+            final int index = MANAGED_OPS.indexOfKey(op);
+            return index >= 0 && (mFlags & getOpFlag(index, true)) != 0;
+        }
+
+        public boolean isWardenAllowed() {
+            return (mFlags & FLAG_WARDEN_ALLOWED) != 0;
+        }
+
+        public boolean isHibernate() {
+            return (mFlags & FLAG_HIBERNATE) != 0;
+        }
+
+        public boolean hasPacifier() {
+            return (mFlags & FLAG_HAS_PACIFIER) != 0;
+        }
+
+        public boolean isPacifierAllowed() {
+            return (mFlags & FLAG_PACIFIER_ALLOWED) != 0;
+        }
+
+        /**
+         * Returns an estimate of the heap the record holds, counting its label even though
+         * it is shared with the app snapshot. The package name is interned and the sort
+         * key is shared, so neither is counted.
+         */
+        public int estimateSize() {
+            return SHALLOW_SIZE + STRING_OVERHEAD + 2 * mLabel.length();
+        }
+
+        @Override
+        public int compareTo(AppRecord another) {
+            final int result = mSortKey.compareTo(another.mSortKey);
+            if (result == 0) {
+                // Unbadged before badged.
+                return mPackageName.compareTo(another.mPackageName);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import java.text.CollationKey;
+
+/**
+ * One row of an app list tab: an app and whether the policy of the tab allows it.
+ */
+public interface AppListItem {
+    /**
+     * Returns the key of the app, made of its package and its user, so the same package
+     * installed in several profiles gets one row per profile.
+     */
+    String getKey();
+
+    String getPackageName();
+
+    String getLabel();
+
+    /**
+     * Returns the collation key of the label, rows are sorted by it.
+     */
+    CollationKey getSortKey();
+
+    long getLastUpdateTime();
+
+    int getUid();
+
+    boolean getAllowed();
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.mokee.aegis.model.AppCatalog.AppRecord;
+import com.mokee.aegis.utils.ModelLoader;
+
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Model of an app list tab, a filtered view over the app catalog. Subclasses only say
+ * which records the tab lists and whether its policy allows an app, loading, patching
+ * with policy deltas and publishing snapshots is shared.
+ */
+public abstract class AppListModel implements RefreshCoordinator.Listener, PolicyStore.Observer {
+    private final AppCatalog mCatalog;
+    private final PolicyStore mStore;
+    private final Callback mCallback;
+    // Policies switched by the tab, deltas of other policies are ignored
+    private final ArraySet<String> mPolicies = new ArraySet<>();
+    // Last delivered load, replaced as a whole so other threads can read it
+    private final AtomicReference<ModelSnapshot<App>> mSnapshot =
+            new AtomicReference<>(ModelSnapshot.<App>empty());
+    private final AppsLoader mLoader = new AppsLoader();
+
+    protected AppListModel(Context context, Callback callback, String... policies) {
+        mCatalog = AppCatalog.get(context);
+        mStore = PolicyStore.get(context);
+        mCallback = callback;
+        for (String policy : policies) {
+            mPolicies.add(policy);
+        }
+        mStore.register(this);
+    }
+
+    /**
+     * Returns whether the tab lists the app of {@code record}.
+     */
+    protected abstract boolean accept(AppRecord record);
+
+    /**
+     * Returns whether the policy of the tab allows the app of {@code record}.
+     */
+    protected abstract boolean isAllowed(AppRecord record);
+
+    public void refresh() {
+        mLoader.load();
+    }
+
+    @Override
+    public void onRefresh(long requestTime) {
+        mLoader.load(requestTime);
+    }
+
+    /**
+     * Drops the running load and any pending refresh, called when the owner goes away.
+     */
+    public void cancel() {
+        mLoader.cancel();
+        mStore.unregister(this);
+    }
+
+    /**
+     * Patches the apps of the last load with the policy changes of this tab and the
+     * removed packages, then delivers the result like a load whose changes are the
+     * patched apps only.
+     */
+    @Override
+    public void onPolicyChanged(List<PolicyStore.Delta> deltas) {
+        final ModelSnapshot<App> snapshot = mSnapshot.get();
+        final ArrayMap<String, App> updates = new ArrayMap<>();
+        for (PolicyStore.Delta delta : deltas) {
+            if (!delta.isRemoval() && !mPolicies.contains(delta.getPolicy())) {
+                continue;
+            }
+            final String key = getKey(delta.getPackageName(), delta.getUserId());
+            final App app = updates.containsKey(key) ? updates.get(key) : snapshot.getApp(key);
+            if (app == null) {
+                continue;
+            }
+            final AppRecord record = app.mRecord.apply(delta);
+            if (record != app.mRecord) {
+                updates.put(key, record != null ? createApp(record) : null);
+            }
+        }
+        final ModelSnapshot<App> next = snapshot.withUpdates(updates);
+        if (next == snapshot) {
+            return;
+        }
+        mSnapshot.set(next);
+        if (mLoader.isLoading()) {
+            // The running load may have read the records before these changes, follow it
+            // with one that reuses its scan.
+            mLoader.load(0);
+        }
+        if (mCallback != null) {
+            mCallback.onAppsLoaded(this);
+        }
+    }
+
+    /**
+     * Returns the last delivered load. Safe to call from any thread, the snapshot is
+     * empty until the first load is delivered.
+     */
+    public ModelSnapshot<App> getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    public Collection<App> getApps() {
+        return mSnapshot.get().getApps();
+    }
+
+    /**
+     * Returns the app of a key, or null if it is not in the last delivered load.
+     */
+    public App getApp(String key) {
+        return mSnapshot.get().getApp(key);
+    }
+
+    /**
+     * Returns the difference between the last delivered load and the one before.
+     */
+    public ChangeSet<App> getChanges() {
+        return mSnapshot.get().getChanges();
+    }
+
+    /**
+     * Returns the search index built with the last delivered load.
+     */
+    public SearchIndex<App> getSearchIndex() {
+        return mSnapshot.get().getSearchIndex();
+    }
+
+    /**
+     * Returns the key of the app of a package in a profile, see {@link AppListItem#getKey}.
+     */
+    public static String getKey(String packageName, int userId) {
+        return packageName + '|' + userId;
+    }
+
+    private App createApp(AppRecord record) {
+        return new App(record, isAllowed(record));
+    }
+
+    private List<App> loadApps(List<AppRecord> records) {
+        ArrayList<App> apps = new ArrayList<>();
+        for (AppRecord record : records) {
+            if (accept(record)) {
+                apps.add(createApp(record));
+            }
+        }
+        return apps;
+    }
+
+    public interface Callback {
+        /**
+         * Called after every load, and after policy changes patched the last one.
+         */
+        void onAppsLoaded(AppListModel model);
+    }
+
+    /**
+     * Policy state of an app, a view over its catalog record.
+     */
+    public static class App implements AppListItem, Comparable<App> {
+        private final AppRecord mRecord;
+        private final String mKey;
+        private final boolean mAllowed;
+
+        private App(AppRecord record, boolean allowed) {
+            mRecord = record;
+            mKey = AppListModel.getKey(record.getPackageName(), record.getUserId());
+            mAllowed = allowed;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public String getLabel() {
+            return mRecord.getLabel();
+        }
+
+        @Override
+        public CollationKey getSortKey() {
+            return mRecord.getSortKey();
+        }
+
+        @Override
+        public long getLastUpdateTime() {
+            return mRecord.getLastUpdateTime();
+        }
+
+        @Override
+        public int getUid() {
+            return mRecord.getUid();
+        }
+
+        @Override
+        public boolean getAllowed() {
+            return mAllowed;
+        }
+
+        @Override
+        public String getPackageName() {
+            return mRecord.getPackageName();
+        }
+
+        @Override
+        public int compareTo(App another) {
+            return mRecord.compareTo(another.mRecord);
+        }
+    }
+
+    private class AppsLoader extends ModelLoader<SearchIndex<App>> {
+        @Override
+        protected SearchIndex<App> loadInBackground(Task task) {
+            List<AppRecord> records = mCatalog.getRecords(task.getRequestTime());
+            List<App> apps = loadApps(records);
+            if (!AppCatalog.hasUnresolvedLabels(records) || task.isCancelled()) {
+                return new SearchIndex<>(apps);
+            }
+            task.publishProgress(new SearchIndex<>(apps));
+            return new SearchIndex<>(loadApps(mCatalog.resolveLabels()));
+        }
+
+        @Override
+        protected void onLoaded(SearchIndex<App> result) {
+            final ModelSnapshot<App> previous = mSnapshot.get();
+            final ModelSnapshot<App> next = ModelSnapshot.next(previous, result);
+            if (previous.isLoaded() && next.getChanges().isEmpty()) {
+                // Like most refreshes on resume, nothing to show.
+                return;
+            }
+            mSnapshot.set(next);
+            if (mCallback != null) {
+                mCallback.onAppsLoaded(AppListModel.this);
+            }
+        }
+
+        @Override
+        protected void onLoadFailed() {
+            // Keep showing the last load, but don't leave the tab loading forever.
+            if (mCallback != null) {
+                mCallback.onAppsLoaded(AppListModel.this);
+            }
+        }
+    }
+}
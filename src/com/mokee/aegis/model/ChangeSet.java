@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between two loads of a tab model, so the tab only has to touch the rows
+ * that actually changed.
+ */
+public class ChangeSet<T extends AppListItem> {
+    private final List<T> mAdded = new ArrayList<>();
+    private final List<T> mRemoved = new ArrayList<>();
+    // Same category, new label or new version
+    private final List<T> mChanged = new ArrayList<>();
+    // Switched between the allow and the deny category
+    private final List<T> mMoved = new ArrayList<>();
+
+    private ChangeSet() {
+    }
+
+    /**
+     * Compares the items of a load with the items of the previous one, keyed by
+     * {@link AppListItem#getKey}. {@code previous} may be null for the first load.
+     */
+    public static <T extends AppListItem> ChangeSet<T> compute(Map<String, T> previous,
+            List<T> current) {
+        ChangeSet<T> changes = new ChangeSet<>();
+        ArraySet<String> keys = new ArraySet<>(current.size());
+        for (T item : current) {
+            keys.add(item.getKey());
+            changes.add(previous != null ? previous.get(item.getKey()) : null, item);
+        }
+        if (previous != null) {
+            for (T old : previous.values()) {
+                if (!keys.contains(old.getKey())) {
+                    changes.mRemoved.add(old);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Compares only the items named by {@code updates}, key -> new item or null if it was
+     * removed, with their previous version. Costs as much as the updates, not the load.
+     */
+    public static <T extends AppListItem> ChangeSet<T> computeUpdates(
+            Map<String, T> previous, Map<String, T> updates) {
+        ChangeSet<T> changes = new ChangeSet<>();
+        for (Map.Entry<String, T> update : updates.entrySet()) {
+            T old = previous.get(update.getKey());
+            if (update.getValue() != null) {
+                changes.add(old, update.getValue());
+            } else if (old != null) {
+                changes.mRemoved.add(old);
+            }
+        }
+        return changes;
+    }
+
+    private void add(T old, T item) {
+        if (old == null) {
+            mAdded.add(item);
+        } else if (old.getAllowed() != item.getAllowed()) {
+            mMoved.add(item);
+        } else if (!old.getLabel().equals(item.getLabel())
+                || old.getLastUpdateTime() != item.getLastUpdateTime()) {
+            mChanged.add(item);
+        }
+    }
+
+    public List<T> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    public List<T> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    public List<T> getChanged() {
+        return Collections.unmodifiableList(mChanged);
+    }
+
+    public List<T> getMoved() {
+        return Collections.unmodifiableList(mMoved);
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty() && mMoved.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSet{added=" + mAdded.size() + ", removed=" + mRemoved.size()
+                + ", changed=" + mChanged.size() + ", moved=" + mMoved.size() + "}";
+    }
+}
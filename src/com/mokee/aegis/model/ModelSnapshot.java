@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One delivered load of a tab model: its apps, their lookup by key, the changes since the
+ * previous load and the search index. A snapshot is never modified once built, so models
+ * publish it through an atomic reference and any thread may read it without locking.
+ * Versions grow by one with each load, the empty snapshot a model starts with is 0.
+ */
+public class ModelSnapshot<T extends AppListItem> {
+    private final long mVersion;
+    private final List<T> mApps;
+    // Map (pkg|user) -> app, not modified after construction
+    private final ArrayMap<String, T> mAppLookup;
+    private final ChangeSet<T> mChanges;
+    private final SearchIndex<T> mSearchIndex;
+
+    private ModelSnapshot(long version, List<T> apps, ArrayMap<String, T> appLookup,
+            ChangeSet<T> changes, SearchIndex<T> searchIndex) {
+        mVersion = version;
+        mApps = apps;
+        mAppLookup = appLookup;
+        mChanges = changes;
+        mSearchIndex = searchIndex;
+    }
+
+    /**
+     * Returns the snapshot of a model that has not loaded yet.
+     */
+    public static <T extends AppListItem> ModelSnapshot<T> empty() {
+        final List<T> apps = Collections.emptyList();
+        return new ModelSnapshot<>(0, apps, new ArrayMap<String, T>(),
+                ChangeSet.compute(null, apps), new SearchIndex<>(apps));
+    }
+
+    /**
+     * Builds the snapshot following {@code previous} from the index of a new load.
+     */
+    public static <T extends AppListItem> ModelSnapshot<T> next(ModelSnapshot<T> previous,
+            SearchIndex<T> searchIndex) {
+        final List<T> apps = Collections.unmodifiableList(searchIndex.getApps());
+        final ArrayMap<String, T> appLookup = new ArrayMap<>(apps.size());
+        for (T app : apps) {
+            appLookup.put(app.getKey(), app);
+        }
+        // The first load has nothing to compare with, every app is added.
+        final ChangeSet<T> changes = ChangeSet.compute(
+                previous.isLoaded() ? previous.mAppLookup : null, apps);
+        return new ModelSnapshot<>(previous.mVersion + 1, apps, appLookup, changes,
+                searchIndex);
+    }
+
+    /**
+     * Builds the snapshot following this one with some of its apps replaced or removed,
+     * as given by {@code updates}, key -> new app or null to remove it. Only the updated
+     * apps are compared, and the search index is shared unless an app was removed.
+     */
+    public ModelSnapshot<T> withUpdates(ArrayMap<String, T> updates) {
+        final ChangeSet<T> changes = ChangeSet.computeUpdates(mAppLookup, updates);
+        if (changes.isEmpty()) {
+            return this;
+        }
+        final ArrayList<T> apps = new ArrayList<>(mApps.size());
+        for (T app : mApps) {
+            final int index = updates.indexOfKey(app.getKey());
+            final T updated = index >= 0 ? updates.valueAt(index) : app;
+            if (updated != null) {
+                apps.add(updated);
+            }
+        }
+        final ArrayMap<String, T> appLookup = new ArrayMap<>(mAppLookup);
+        for (int i = 0; i < updates.size(); i++) {
+            if (updates.valueAt(i) != null) {
+                appLookup.put(updates.keyAt(i), updates.valueAt(i));
+            } else {
+                appLookup.remove(updates.keyAt(i));
+            }
+        }
+        final List<T> unmodifiableApps = Collections.unmodifiableList(apps);
+        final SearchIndex<T> searchIndex = changes.getRemoved().isEmpty()
+                ? mSearchIndex.withApps(unmodifiableApps) : new SearchIndex<>(unmodifiableApps);
+        return new ModelSnapshot<>(mVersion + 1, unmodifiableApps, appLookup, changes,
+                searchIndex);
+    }
+
+    /**
+     * Returns whether this snapshot comes from a load, rather than being the empty one.
+     */
+    public boolean isLoaded() {
+        return mVersion > 0;
+    }
+
+    public List<T> getApps() {
+        return mApps;
+    }
+
+    /**
+     * Returns the app of a key, or null if this snapshot does not have it.
+     */
+    public T getApp(String key) {
+        return mAppLookup.get(key);
+    }
+
+    /**
+     * Returns the difference between this snapshot and the previous one.
+     */
+    public ChangeSet<T> getChanges() {
+        return mChanges;
+    }
+
+    public SearchIndex<T> getSearchIndex() {
+        return mSearchIndex;
+    }
+}
@@ -17,180 +17,59 @@
 
 package com.mokee.aegis.model;
 
-import android.app.AppOpsManager;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.UserHandle;
-import android.os.UserManager;
-import android.util.ArrayMap;
 import android.util.SparseArray;
-import android.util.SparseBooleanArray;
 
-import com.mokee.aegis.utils.PmCache;
-import com.mokee.utils.PackageUtils;
+import com.mokee.aegis.model.AppCatalog.AppRecord;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+public class PermissionApps extends AppListModel {
+    private final int[] mRequestOps;
 
-public class PermissionApps {
-    private static final String LOG_TAG = "PermissionApps";
-    private static final String[] WHITE_LIST = {"com.cyanogenmod.lockclock"};
-    private final Context mContext;
-    private final SparseArray<String> mRequestPermissionGroups;
-    private final PackageManager mPm;
-    private final Callback mCallback;
-    private final PmCache mCache;
-    private List<PermissionApp> mPermApps;
-    // Map (pkg|uid) -> AppPermission
-    private ArrayMap<String, PermissionApp> mAppLookup;
-    private boolean mRefreshing;
-
-    public PermissionApps(Context context, SparseArray<String> groups, Callback callback, PmCache cache) {
-        mCache = cache;
-        mContext = context;
-        mRequestPermissionGroups = groups;
-        mPm = mContext.getPackageManager();
-        mCallback = callback;
+    public PermissionApps(Context context, SparseArray<String> groups, Callback callback) {
+        this(context, getRequestOps(groups), callback);
     }
 
-    public void refresh() {
-        if (!mRefreshing) {
-            mRefreshing = true;
-            new PermissionAppsLoader().execute();
-        }
+    private PermissionApps(Context context, int[] requestOps, Callback callback) {
+        super(context, callback, getOpPolicies(requestOps));
+        mRequestOps = requestOps;
     }
 
-    public Collection<PermissionApp> getApps() {
-        return mPermApps;
-    }
-
-    public PermissionApp getApp(String key) {
-        return mAppLookup.get(key);
-    }
-
-    private List<PermissionApp> loadPermissionApps() {
-        ArrayList<PermissionApp> permApps = new ArrayList<>();
-        for (UserHandle user : UserManager.get(mContext).getUserProfiles()) {
-            List<PackageInfo> apps = mCache != null ? mCache.getPackages(user.getIdentifier(), PackageManager.GET_PERMISSIONS)
-                    : mPm.getInstalledPackages(PackageManager.GET_PERMISSIONS,
-                    user.getIdentifier());
-            AppOpsManager mAppOpsManager = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
-            for (PackageInfo app : apps) {
-                if (app.requestedPermissions == null) {
-                    continue;
-                }
-                SparseBooleanArray requestPermissionStatus = new SparseBooleanArray();
-
-                for (int index = 0; index < mRequestPermissionGroups.size(); index++) {
-                    int key = mRequestPermissionGroups.keyAt(index);
-                    boolean permissionExists = Arrays.asList(app.requestedPermissions).contains(mRequestPermissionGroups.get(key));
-                    if (permissionExists && !PackageUtils.isSystem(app.applicationInfo) || permissionExists && PackageUtils.isSystem(app.applicationInfo) && Arrays.asList(WHITE_LIST).contains(app.packageName)) {
-                        int mode = mAppOpsManager.checkOp(key, app.applicationInfo.uid, app.packageName);
-                        requestPermissionStatus.put(key, AppOpsManager.MODE_ALLOWED == mode);
-                    }
-                }
-                if (requestPermissionStatus.size() > 0) {
-                    String label = app.applicationInfo.loadLabel(mPm).toString();
-                    PermissionApp permApp = new PermissionApp(app.packageName,
-                            label, app.applicationInfo.loadIcon(mPm), requestPermissionStatus, app.applicationInfo);
-                    permApps.add(permApp);
-                }
-            }
+    private static int[] getRequestOps(SparseArray<String> groups) {
+        final int[] ops = new int[groups.size()];
+        for (int index = 0; index < groups.size(); index++) {
+            ops[index] = groups.keyAt(index);
         }
-
-        Collections.sort(permApps);
-
-        return permApps;
+        return ops;
     }
 
-    private void createMap(List<PermissionApp> result) {
-        mAppLookup = new ArrayMap<>();
-        for (PermissionApp app : result) {
-            mAppLookup.put(app.getKey(), app);
+    private static String[] getOpPolicies(int[] ops) {
+        final String[] policies = new String[ops.length];
+        for (int index = 0; index < ops.length; index++) {
+            policies[index] = PolicyStore.getOpPolicy(ops[index]);
         }
-        mPermApps = result;
-    }
-
-
-    public interface Callback {
-        void onPermissionsLoaded(PermissionApps permissionApps);
+        return policies;
     }
 
-    public static class PermissionApp implements Comparable<PermissionApp> {
-        private final String mPackageName;
-        private final String mLabel;
-        private final Drawable mIcon;
-        private final SparseBooleanArray mRequestPermissionStatus;
-        private final ApplicationInfo mInfo;
-
-        public PermissionApp(String packageName, String label, Drawable icon, SparseBooleanArray requestPermissionStatus, ApplicationInfo info) {
-            mPackageName = packageName;
-            mLabel = label;
-            mIcon = icon;
-            mRequestPermissionStatus = requestPermissionStatus;
-            mInfo = info;
-        }
-
-        public ApplicationInfo getAppInfo() {
-            return mInfo;
-        }
-
-        public String getKey() {
-            return mPackageName;
-        }
-
-        public String getLabel() {
-            return mLabel;
-        }
-
-        public Drawable getIcon() {
-            return mIcon;
-        }
-
-        public SparseBooleanArray getRequestPermissionStatus() {
-            return mRequestPermissionStatus;
-        }
-
-        public String getPackageName() {
-            return mPackageName;
-        }
-
-        @Override
-        public int compareTo(PermissionApp another) {
-            final int result = mLabel.compareTo(another.mLabel);
-            if (result == 0) {
-                // Unbadged before badged.
-                return getKey().compareTo(another.getKey());
+    @Override
+    protected boolean accept(AppRecord record) {
+        for (int op : mRequestOps) {
+            if (record.isOpRequested(op)) {
+                return true;
             }
-            return result;
-        }
-
-        public int getUid() {
-            return getAppInfo().uid;
         }
+        return false;
     }
 
-    private class PermissionAppsLoader extends AsyncTask<Void, Void, List<PermissionApp>> {
-
-        @Override
-        protected List<PermissionApp> doInBackground(Void... args) {
-            return loadPermissionApps();
-        }
-
-        @Override
-        protected void onPostExecute(List<PermissionApp> result) {
-            mRefreshing = false;
-            createMap(result);
-            if (mCallback != null) {
-                mCallback.onPermissionsLoaded(PermissionApps.this);
+    /**
+     * Returns true if every requested op of the app is allowed.
+     */
+    @Override
+    protected boolean isAllowed(AppRecord record) {
+        for (int op : mRequestOps) {
+            if (record.isOpRequested(op) && !record.isOpAllowed(op)) {
+                return false;
             }
         }
+        return true;
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process store of the policy changes of single apps. Whoever changes the autorun,
+ * wakelock, warden, hibernate or pacifier state of an app, or sees an app go away,
+ * publishes a delta here. The app catalog patches its records with it right away, and
+ * every registered model patches the apps of its last load, so a change reaches all the
+ * tabs without a rescan and only costs as much as the apps it names.
+ * <p>
+ * A policy is named after the preferences that persist it, see {@link #getOpPolicy} and
+ * the preference names of {@link com.mokee.aegis.receiver.PackagesMonitor}. Deltas can
+ * be published from any thread, the ones published together are delivered together on
+ * the main thread. Observers must register and unregister on the main thread.
+ */
+public class PolicyStore {
+    private static PolicyStore sInstance;
+
+    private final AppCatalog mCatalog;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArraySet<Observer> mObservers = new ArraySet<>();
+    // Deltas waiting to be delivered, guarded by itself
+    private final ArrayList<Delta> mPending = new ArrayList<>();
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final List<Delta> deltas;
+            synchronized (mPending) {
+                deltas = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            for (Observer observer : mObservers.toArray(new Observer[mObservers.size()])) {
+                observer.onPolicyChanged(deltas);
+            }
+        }
+    };
+
+    private PolicyStore(Context context) {
+        mCatalog = AppCatalog.get(context);
+    }
+
+    public static synchronized PolicyStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PolicyStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the policy of an app op, named like the preferences of its tab.
+     */
+    public static String getOpPolicy(int op) {
+        return "appops_" + op;
+    }
+
+    public void register(Observer observer) {
+        mObservers.add(observer);
+    }
+
+    public void unregister(Observer observer) {
+        mObservers.remove(observer);
+    }
+
+    /**
+     * Publishes the new state of a package for a policy, in one profile.
+     */
+    public void publish(String policy, String packageName, int userId, boolean allowed) {
+        publish(new Delta(policy, packageName, userId, allowed));
+    }
+
+    /**
+     * Publishes that a package was removed from a profile.
+     */
+    public void publishRemoved(String packageName, int userId) {
+        publish(new Delta(null, packageName, userId, false));
+    }
+
+    private void publish(Delta delta) {
+        // Patch the catalog first, so a load starting from now on already sees the change.
+        mCatalog.applyDelta(delta);
+        synchronized (mPending) {
+            mPending.add(delta);
+            if (mPending.size() == 1) {
+                mHandler.post(mDispatchRunnable);
+            }
+        }
+    }
+
+    /**
+     * Change of one package, either its new state for one policy or its removal.
+     */
+    public static class Delta {
+        private final String mPolicy;
+        private final String mPackageName;
+        private final int mUserId;
+        private final boolean mAllowed;
+        private final long mTime;
+
+        private Delta(String policy, String packageName, int userId, boolean allowed) {
+            mPolicy = policy;
+            mPackageName = packageName;
+            mUserId = userId;
+            mAllowed = allowed;
+            mTime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Returns the policy that changed, or null if the package was removed.
+         */
+        public String getPolicy() {
+            return mPolicy;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getUserId() {
+            return mUserId;
+        }
+
+        public boolean isRemoval() {
+            return mPolicy == null;
+        }
+
+        public boolean isAllowed() {
+            return mAllowed;
+        }
+
+        /**
+         * Returns when the delta was published, in {@link SystemClock#elapsedRealtime}.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * Returns whether the delta is about the package of {@code packageName} and
+         * {@code uid}.
+         */
+        public boolean appliesTo(String packageName, int uid) {
+            return mPackageName.equals(packageName)
+                    && (mUserId == UserHandle.USER_ALL || mUserId == UserHandle.getUserId(uid));
+        }
+    }
+
+    public interface Observer {
+        /**
+         * Called on the main thread with the deltas published since the last call, in the
+         * order they were published.
+         */
+        void onPolicyChanged(List<Delta> deltas);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.ArraySet;
+
+import com.mokee.aegis.R;
+
+/**
+ * Merges the refresh requests of all tabs into one. The tabs kept alive by the view pager
+ * all ask for a refresh when the activity resumes; the requests made within a short delay
+ * are collapsed into a single notification of every registered model, and the app
+ * catalog is only refreshed if its last scan is older than the freshness window. While
+ * the catalog watches the op modes, that refresh only reads the policies without a
+ * watcher again.
+ * <p>
+ * Must only be used on the main thread.
+ */
+public class RefreshCoordinator {
+    // Delay used to collect the requests of the tabs resumed together
+    private static final long DEBOUNCE_MILLIS = 50;
+
+    private static RefreshCoordinator sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArraySet<Listener> mListeners = new ArraySet<>();
+    private final long mFreshnessMillis;
+    private boolean mScheduled;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            // Accept a catalog scan that started within the freshness window.
+            long requestTime = SystemClock.elapsedRealtime() - mFreshnessMillis;
+            for (Listener listener : mListeners.toArray(new Listener[mListeners.size()])) {
+                listener.onRefresh(requestTime);
+            }
+        }
+    };
+
+    private RefreshCoordinator(Context context) {
+        mFreshnessMillis = context.getResources().getInteger(R.integer.config_refreshFreshnessMillis);
+    }
+
+    public static synchronized RefreshCoordinator get(Context context) {
+        if (sInstance == null) {
+            sInstance = new RefreshCoordinator(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public void register(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unregister(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Schedules a refresh of every registered model, unless one is already scheduled.
+     */
+    public void requestRefresh() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mRefreshRunnable, DEBOUNCE_MILLIS);
+        }
+    }
+
+    /**
+     * Refreshes a single model right away, reusing a catalog scan that is still fresh.
+     */
+    public void refresh(Listener listener) {
+        listener.onRefresh(SystemClock.elapsedRealtime() - mFreshnessMillis);
+    }
+
+    public interface Listener {
+        /**
+         * Called to refresh a model with data gathered after {@code requestTime}.
+         */
+        void onRefresh(long requestTime);
+    }
+}
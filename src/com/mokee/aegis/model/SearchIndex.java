@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.model;
+
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The apps of a model load, indexed for search. Every label and package name is split
+ * into tokens, kept whole as well, and the tokens of all apps are sorted so the apps
+ * having a token that starts with a query term are found by binary search.
+ * <p>
+ * A query is made of terms separated by spaces, an app matches if each term is a prefix
+ * of one of its tokens. A query that extends the previous one only narrows down the
+ * previous result, so typing does not rescan the whole index.
+ */
+public class SearchIndex<T extends AppListItem> {
+    private final List<T> mApps;
+    // Sorted tokens of all apps, and at the same position, the app each one belongs to
+    private final String[] mTokens;
+    private final int[] mTokenApps;
+    // Tokens of each app, used to check the apps of a previous result
+    private final String[][] mAppTokens;
+
+    public SearchIndex(List<T> apps) {
+        mApps = apps;
+        mAppTokens = new String[apps.size()][];
+        final ArrayList<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < apps.size(); i++) {
+            final T app = apps.get(i);
+            final ArraySet<String> appTokens = new ArraySet<>();
+            addTokens(appTokens, normalize(app.getLabel()));
+            addTokens(appTokens, normalize(app.getPackageName()));
+            mAppTokens[i] = appTokens.toArray(new String[appTokens.size()]);
+            for (String token : mAppTokens[i]) {
+                tokens.add(new Token(token, i));
+            }
+        }
+        final Token[] sorted = tokens.toArray(new Token[tokens.size()]);
+        Arrays.sort(sorted, new Comparator<Token>() {
+            @Override
+            public int compare(Token lhs, Token rhs) {
+                return lhs.text.compareTo(rhs.text);
+            }
+        });
+        mTokens = new String[sorted.length];
+        mTokenApps = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            mTokens[i] = sorted[i].text;
+            mTokenApps[i] = sorted[i].app;
+        }
+    }
+
+    private SearchIndex(List<T> apps, String[] tokens, int[] tokenApps, String[][] appTokens) {
+        mApps = apps;
+        mTokens = tokens;
+        mTokenApps = tokenApps;
+        mAppTokens = appTokens;
+    }
+
+    /**
+     * Returns an index over {@code apps}, which must be the apps of this index, in the same
+     * order, some of them replaced by apps of the same key and label. The tokens are shared
+     * instead of being built again.
+     */
+    SearchIndex<T> withApps(List<T> apps) {
+        return new SearchIndex<>(apps, mTokens, mTokenApps, mAppTokens);
+    }
+
+    public List<T> getApps() {
+        return mApps;
+    }
+
+    /**
+     * Returns the apps matching {@code query}. If the query extends the one of
+     * {@code previous}, only the apps of that result are checked.
+     */
+    public Result search(String query, Result previous) {
+        final String normalized = normalize(query).trim();
+        final String[] terms = normalized.split("\\s+");
+        if (previous != null && previous.mIndex == this
+                && normalized.startsWith(previous.mQuery)) {
+            final int[] matches = new int[previous.mMatches.length];
+            int count = 0;
+            for (int app : previous.mMatches) {
+                if (matches(app, terms)) {
+                    matches[count++] = app;
+                }
+            }
+            return createResult(normalized, matches, count);
+        }
+        // Look up the first term in the sorted tokens, then check the others per app.
+        final boolean[] found = new boolean[mApps.size()];
+        int i = lowerBound(terms[0]);
+        while (i < mTokens.length && mTokens[i].startsWith(terms[0])) {
+            found[mTokenApps[i++]] = true;
+        }
+        final int[] matches = new int[mApps.size()];
+        int count = 0;
+        for (int app = 0; app < found.length; app++) {
+            if (found[app] && (terms.length == 1 || matches(app, terms))) {
+                matches[count++] = app;
+            }
+        }
+        return createResult(normalized, matches, count);
+    }
+
+    private Result createResult(String query, int[] matches, int count) {
+        final ArraySet<String> keys = new ArraySet<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(mApps.get(matches[i]).getKey());
+        }
+        return new Result(this, query, Arrays.copyOf(matches, count), keys);
+    }
+
+    private boolean matches(int app, String[] terms) {
+        for (String term : terms) {
+            boolean found = false;
+            for (String token : mAppTokens[app]) {
+                if (token.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lowerBound(String term) {
+        int low = 0;
+        int high = mTokens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.getDefault());
+    }
+
+    // Adds the whole text and each of its words, split on anything but letters and digits.
+    private static void addTokens(ArraySet<String> tokens, String text) {
+        tokens.add(text);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static class Token {
+        final String text;
+        final int app;
+
+        Token(String text, int app) {
+            this.text = text;
+            this.app = app;
+        }
+    }
+
+    public static class Result {
+        private final SearchIndex<?> mIndex;
+        private final String mQuery;
+        // Positions of the matching apps in the index, ascending
+        private final int[] mMatches;
+        private final ArraySet<String> mKeys;
+
+        private Result(SearchIndex<?> index, String query, int[] matches, ArraySet<String> keys) {
+            mIndex = index;
+            mQuery = query;
+            mMatches = matches;
+            mKeys = keys;
+        }
+
+        /**
+         * Returns the keys of the matching apps.
+         */
+        public ArraySet<String> getKeys() {
+            return mKeys;
+        }
+    }
+}
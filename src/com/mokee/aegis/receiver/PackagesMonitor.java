@@ -20,6 +20,7 @@ package com.mokee.aegis.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -28,6 +29,7 @@ import android.text.TextUtils;
 
 import com.android.internal.app.IAppOpsService;
 import com.mokee.aegis.service.ManageHibernateService;
+import com.mokee.aegis.utils.AppSnapshotStore;
 
 public class PackagesMonitor extends BroadcastReceiver {
 
@@ -53,6 +55,7 @@ public class PackagesMonitor extends BroadcastReceiver {
                     mAppOps.removeWardenPackageInfoFromUid(UserHandle.myUserId(), packageName, UserHandle.myUserId());
                 } catch (RemoteException e) {
                 }
+                removeSnapshot(context, packageName, getSendingUserId());
                 context.getSharedPreferences(PREF_AUTORUN, Context.MODE_PRIVATE).edit().remove(packageName).apply();
                 context.getSharedPreferences(PREF_WAKELOCK, Context.MODE_PRIVATE).edit().remove(packageName).apply();
                 context.getSharedPreferences(PREF_PACIFIER, Context.MODE_PRIVATE).edit().remove(packageName).apply();
@@ -61,4 +64,17 @@ public class PackagesMonitor extends BroadcastReceiver {
             }
         }
     }
+
+    // Reads and rewrites the snapshot file, so keep it off the main thread.
+    private void removeSnapshot(final Context context, final String packageName,
+            final int userId) {
+        final PendingResult result = goAsync();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                AppSnapshotStore.get(context).remove(packageName, userId);
+                result.finish();
+            }
+        });
+    }
 }
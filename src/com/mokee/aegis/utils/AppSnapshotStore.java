@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.mokee.aegis.R;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.CollationKey;
+import java.util.Locale;
+
+/**
+ * Persistent snapshot of the per-package metadata shown in the app lists (label, a
+ * downscaled icon, flags and uid). Resolving those means opening the resources of every
+ * APK, so they are kept in the files directory and only re-resolved when the package was
+ * updated or the locale changed.
+ * <p>
+ * Only the small fields are held in memory. Icons are written to a file per package and
+ * read back on demand by {@link IconCache}.
+ */
+public class AppSnapshotStore {
+    private static final String TAG = "AppSnapshotStore";
+    private static final String FILE_NAME = "app_snapshot.bin";
+    private static final String ICON_DIR_NAME = "app_icons";
+    private static final int VERSION = 2;
+
+    private static AppSnapshotStore sInstance;
+
+    private final PackageManager mPm;
+    private final AtomicFile mFile;
+    // Holds a directory per user, with a png per package
+    private final File mIconDir;
+    private final int mIconSize;
+
+    // Map userId -> (pkg -> Entry)
+    private final SparseArray<ArrayMap<String, Entry>> mEntries = new SparseArray<>();
+    private String mLocale;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    private AppSnapshotStore(Context context) {
+        mPm = context.getPackageManager();
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        mIconDir = new File(context.getFilesDir(), ICON_DIR_NAME);
+        mIconSize = context.getResources().getDimensionPixelSize(R.dimen.app_icon_size);
+    }
+
+    public static synchronized AppSnapshotStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppSnapshotStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the entry of a package, resolving its label and icon again only when the
+     * stored one is missing or out of date. Must not be called on the main thread.
+     */
+    public Entry resolve(ApplicationInfo info, long lastUpdateTime) {
+        final int userId = UserHandle.getUserId(info.uid);
+        Entry entry = getEntry(info.packageName, userId, lastUpdateTime);
+        if (entry != null) {
+            return entry;
+        }
+        String label = info.loadLabel(mPm).toString();
+        writeIcon(info.packageName, userId, createIconBitmap(info.loadIcon(mPm), mIconSize));
+        entry = new Entry(info.packageName, userId, lastUpdateTime, info.uid, info.flags, label);
+        synchronized (this) {
+            ArrayMap<String, Entry> entries = mEntries.get(userId);
+            if (entries == null) {
+                entries = new ArrayMap<>();
+                mEntries.put(userId, entries);
+            }
+            entries.put(info.packageName, entry);
+            mDirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the stored entry of a package, or null if there is none that is still valid
+     * for the installed version and the current locale.
+     */
+    public Entry getEntry(PackageInfo info, int userId) {
+        return getEntry(info.packageName, userId, info.lastUpdateTime);
+    }
+
+    public synchronized Entry getEntry(String packageName, int userId, long lastUpdateTime) {
+        ensureLoadedLocked();
+        ArrayMap<String, Entry> entries = mEntries.get(userId);
+        Entry entry = entries != null ? entries.get(packageName) : null;
+        if (entry == null || entry.mLastUpdateTime != lastUpdateTime) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Decodes the stored icon of a package, already scaled to the list row icon size.
+     * Returns null if there is no valid entry or its icon could not be read. Must not be
+     * called on the main thread.
+     */
+    public Bitmap loadIcon(String packageName, int userId, long lastUpdateTime) {
+        if (getEntry(packageName, userId, lastUpdateTime) == null) {
+            return null;
+        }
+        return BitmapFactory.decodeFile(getIconFile(packageName, userId).getPath());
+    }
+
+    /**
+     * Drops the entry of an uninstalled package and writes the snapshot back. Must not be
+     * called on the main thread.
+     */
+    public synchronized void remove(String packageName, int userId) {
+        ensureLoadedLocked();
+        ArrayMap<String, Entry> entries = mEntries.get(userId);
+        if (entries != null && entries.remove(packageName) != null) {
+            mDirty = true;
+        }
+        getIconFile(packageName, userId).delete();
+        save();
+    }
+
+    /**
+     * Drops the entries of the packages missing from {@code packages}, userId -> package
+     * names, such as apps removed while the process was not running.
+     */
+    public synchronized void retain(SparseArray<ArraySet<String>> packages) {
+        ensureLoadedLocked();
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final int userId = mEntries.keyAt(i);
+            ArraySet<String> installed = packages.get(userId);
+            ArrayMap<String, Entry> entries = mEntries.valueAt(i);
+            for (int j = entries.size() - 1; j >= 0; j--) {
+                if (installed == null || !installed.contains(entries.keyAt(j))) {
+                    getIconFile(entries.keyAt(j), userId).delete();
+                    entries.removeAt(j);
+                    mDirty = true;
+                }
+            }
+            if (entries.isEmpty()) {
+                mEntries.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot back to disk if anything changed since it was read.
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(mLocale);
+            int count = 0;
+            for (int i = 0; i < mEntries.size(); i++) {
+                count += mEntries.valueAt(i).size();
+            }
+            out.writeInt(count);
+            for (int i = 0; i < mEntries.size(); i++) {
+                ArrayMap<String, Entry> entries = mEntries.valueAt(i);
+                for (int j = 0; j < entries.size(); j++) {
+                    entries.valueAt(j).writeTo(out);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + FILE_NAME, e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    private void ensureLoadedLocked() {
+        String locale = Locale.getDefault().toLanguageTag();
+        if (mLoaded) {
+            if (!locale.equals(mLocale)) {
+                // Labels were resolved for another locale.
+                mEntries.clear();
+                mLocale = locale;
+                mDirty = true;
+            }
+            return;
+        }
+        mLoaded = true;
+        mLocale = locale;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION || !locale.equals(in.readUTF())) {
+                mDirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = Entry.readFrom(in);
+                ArrayMap<String, Entry> entries = mEntries.get(entry.mUserId);
+                if (entries == null) {
+                    entries = new ArrayMap<>();
+                    mEntries.put(entry.mUserId, entries);
+                }
+                entries.put(entry.mPackageName, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // First run, nothing stored yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + FILE_NAME + ", discarding it", e);
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a drawable into a bitmap of the given size. This flattens adaptive, layered
+     * and high density icons to exactly what the list row needs.
+     */
+    public static Bitmap createIconBitmap(Drawable drawable, int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, size, size);
+        drawable.draw(canvas);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    private File getIconFile(String packageName, int userId) {
+        return new File(new File(mIconDir, String.valueOf(userId)), packageName + ".png");
+    }
+
+    private void writeIcon(String packageName, int userId, Bitmap icon) {
+        File file = getIconFile(packageName, userId);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+        AtomicFile iconFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = iconFile.startWrite();
+            BufferedOutputStream out = new BufferedOutputStream(fos);
+            icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.flush();
+            iconFile.finishWrite(fos);
+        } catch (IOException e) {
+            // The icon is loaded from the package again instead.
+            Log.w(TAG, "Failed to write the icon of " + packageName, e);
+            iconFile.failWrite(fos);
+        }
+    }
+
+    public static class Entry {
+        private final String mPackageName;
+        private final int mUserId;
+        private final long mLastUpdateTime;
+        private final int mUid;
+        private final int mFlags;
+        private final String mLabel;
+        // Built on first use, entries are dropped with their keys when the locale changes
+        private CollationKey mSortKey;
+
+        private Entry(String packageName, int userId, long lastUpdateTime, int uid, int flags,
+                String label) {
+            mPackageName = packageName;
+            mUserId = userId;
+            mLastUpdateTime = lastUpdateTime;
+            mUid = uid;
+            mFlags = flags;
+            mLabel = label;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getUserId() {
+            return mUserId;
+        }
+
+        public long getLastUpdateTime() {
+            return mLastUpdateTime;
+        }
+
+        public int getUid() {
+            return mUid;
+        }
+
+        public int getFlags() {
+            return mFlags;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /**
+         * Returns the collation key of the label, which the app lists are sorted by.
+         */
+        public synchronized CollationKey getSortKey() {
+            if (mSortKey == null) {
+                mSortKey = LabelCollator.getCollationKey(mLabel);
+            }
+            return mSortKey;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(mPackageName);
+            out.writeInt(mUserId);
+            out.writeLong(mLastUpdateTime);
+            out.writeInt(mUid);
+            out.writeInt(mFlags);
+            out.writeUTF(mLabel);
+        }
+
+        private static Entry readFrom(DataInputStream in) throws IOException {
+            String packageName = in.readUTF();
+            int userId = in.readInt();
+            long lastUpdateTime = in.readLong();
+            int uid = in.readInt();
+            int flags = in.readInt();
+            String label = in.readUTF();
+            return new Entry(packageName, userId, lastUpdateTime, uid, flags, label);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.LruCache;
+
+import com.mokee.aegis.R;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of app icons, shared by every tab. Icons are stored as bitmaps that
+ * are already scaled to the size of the list row icon, and the cache is bounded by the
+ * number of bytes those bitmaps use.
+ * <p>
+ * Icons that are not cached yet are decoded on a small background pool. Requests are
+ * served newest first, so the rows that were bound last, which are the ones on screen,
+ * get their icons before rows that were already scrolled past. Rows asking for an icon
+ * that is already being loaded wait for that load, and a load nobody waits for anymore,
+ * because its rows were bound again meanwhile, is skipped.
+ */
+public class IconCache {
+    private static final int LOADER_THREADS = 2;
+
+    private static IconCache sInstance;
+
+    private final PackageManager mPm;
+    private final AppSnapshotStore mSnapshots;
+    private final int mIconSize;
+    // Map (pkg|user|lastUpdateTime) -> row sized icon
+    private final LruCache<String, Bitmap> mIcons;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mLoader;
+    // Map key -> listeners waiting for the icon being loaded, guarded by itself
+    private final ArrayMap<String, ArrayList<OnIconLoadedListener>> mPending = new ArrayMap<>();
+
+    private IconCache(Context context) {
+        mPm = context.getPackageManager();
+        mSnapshots = AppSnapshotStore.get(context);
+        mIconSize = context.getResources().getDimensionPixelSize(R.dimen.app_icon_size);
+        // Use 1/16th of the heap, that holds a few hundred row sized icons.
+        mIcons = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mLoader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                }, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "IconLoader");
+                    }
+                });
+        mLoader.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized IconCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached icon of a package, or null if it has to be loaded first.
+     */
+    public Bitmap getCachedIcon(String packageName, int userId, long lastUpdateTime) {
+        return mIcons.get(getKey(packageName, userId, lastUpdateTime));
+    }
+
+    /**
+     * Loads the icon of a package on the background pool and hands it to the listener on
+     * the main thread. Only one load per icon runs at a time, later listeners join it.
+     * Must be called on the main thread.
+     */
+    public void loadIcon(final String packageName, final int userId, final long lastUpdateTime,
+            OnIconLoadedListener listener) {
+        final String key = getKey(packageName, userId, lastUpdateTime);
+        synchronized (mPending) {
+            ArrayList<OnIconLoadedListener> listeners = mPending.get(key);
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+            listeners = new ArrayList<>();
+            listeners.add(listener);
+            mPending.put(key, listeners);
+        }
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPending) {
+                    if (!mPending.containsKey(key)) {
+                        // Every row asking for it was bound again, don't decode it.
+                        return;
+                    }
+                }
+                final Bitmap icon = getIcon(packageName, userId, lastUpdateTime);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ArrayList<OnIconLoadedListener> listeners;
+                        synchronized (mPending) {
+                            listeners = mPending.remove(key);
+                        }
+                        if (listeners != null) {
+                            for (OnIconLoadedListener listener : listeners) {
+                                listener.onIconLoaded(icon);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops waiting for the icon a listener asked for, called when its row is bound again.
+     * The load is dropped if no other listener waits for it. Must be called on the main
+     * thread.
+     */
+    public void cancelIcon(OnIconLoadedListener listener) {
+        synchronized (mPending) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                final ArrayList<OnIconLoadedListener> listeners = mPending.valueAt(i);
+                if (listeners.remove(listener) && listeners.isEmpty()) {
+                    mPending.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the icon of a package, reading it from the app snapshot or loading it from
+     * the package when it is not cached. Returns null if the package is gone. Should not
+     * be called on the main thread.
+     */
+    public Bitmap getIcon(String packageName, int userId, long lastUpdateTime) {
+        final String key = getKey(packageName, userId, lastUpdateTime);
+        Bitmap icon = mIcons.get(key);
+        if (icon != null) {
+            return icon;
+        }
+        icon = mSnapshots.loadIcon(packageName, userId, lastUpdateTime);
+        if (icon == null) {
+            // The app records don't keep their ApplicationInfo, look it up again.
+            final ApplicationInfo info;
+            try {
+                info = mPm.getApplicationInfoAsUser(packageName, 0, userId);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+            icon = AppSnapshotStore.createIconBitmap(info.loadIcon(mPm), mIconSize);
+        }
+        mIcons.put(key, icon);
+        return icon;
+    }
+
+    private static String getKey(String packageName, int userId, long lastUpdateTime) {
+        return packageName + '|' + userId + '|' + lastUpdateTime;
+    }
+
+    public interface OnIconLoadedListener {
+        void onIconLoaded(Bitmap icon);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Builds the keys app labels are sorted by. A collation key orders labels the way the
+ * current locale expects, including CJK and accented ones, and comparing two keys is a
+ * byte compare, so the keys are built once per label and kept with it.
+ */
+public class LabelCollator {
+    private static Locale sLocale;
+    private static Collator sCollator;
+
+    private LabelCollator() {
+    }
+
+    /**
+     * Returns the collation key of a label for the current locale.
+     */
+    public static synchronized CollationKey getCollationKey(String label) {
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(sLocale)) {
+            sLocale = locale;
+            sCollator = Collator.getInstance(locale);
+        }
+        return sCollator.getCollationKey(label);
+    }
+}
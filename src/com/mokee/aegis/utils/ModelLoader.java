@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background load of a model on a pool dedicated to model loads, so the tabs
+ * don't queue up behind each other on the serial AsyncTask executor.
+ * <p>
+ * Every load is stamped with a generation. Results of a load that was cancelled or
+ * superseded are dropped instead of being delivered. A load requested while another one
+ * is running is coalesced: exactly one follow-up load is started once the running one
+ * finishes, however many requests came in meanwhile.
+ * <p>
+ * {@link #load()} and {@link #cancel()} must be called on the main thread, results are
+ * delivered there as well.
+ */
+public abstract class ModelLoader<T> {
+    private static final String TAG = "ModelLoader";
+    private static final int LOADER_THREADS = 2;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(LOADER_THREADS,
+            LOADER_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ModelLoader");
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private Future<?> mFuture;
+    private boolean mRunning;
+    private boolean mPending;
+    private long mPendingRequestTime;
+
+    /**
+     * Starts a load, or schedules one follow-up load if a load is already running.
+     */
+    public void load() {
+        load(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Starts a load that accepts data gathered after {@code requestTime}, or schedules one
+     * follow-up load if a load is already running.
+     */
+    public void load(long requestTime) {
+        if (mRunning) {
+            mPendingRequestTime = mPending ? Math.max(mPendingRequestTime, requestTime) : requestTime;
+            mPending = true;
+            return;
+        }
+        start(requestTime);
+    }
+
+    /**
+     * Cancels the running and the pending load. A load that already started keeps running
+     * to completion, since its results may be shared with other models, but nothing it
+     * produces is delivered.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        mPending = false;
+        mRunning = false;
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    public boolean isLoading() {
+        return mRunning;
+    }
+
+    private void start(long requestTime) {
+        final Task task = new Task(mGeneration.incrementAndGet(), requestTime);
+        mRunning = true;
+        mFuture = sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    return;
+                }
+                T result = null;
+                boolean loaded = false;
+                try {
+                    result = loadInBackground(task);
+                    loaded = true;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Load of " + ModelLoader.this + " failed", e);
+                } finally {
+                    // Whatever happened, the main thread has to learn the load is over.
+                    task.finish(result, loaded);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the data of the model. Runs on the loader pool.
+     */
+    protected abstract T loadInBackground(Task task);
+
+    /**
+     * Called on the main thread with the result of the current load, and with every
+     * intermediate result it published.
+     */
+    protected abstract void onLoaded(T result);
+
+    /**
+     * Called on the main thread instead of {@link #onLoaded} when the current load threw.
+     * The loader is idle again, or runs its follow-up load right after.
+     */
+    protected void onLoadFailed() {
+    }
+
+    public class Task {
+        private final int mTaskGeneration;
+        private final long mRequestTime;
+
+        private Task(int generation, long requestTime) {
+            mTaskGeneration = generation;
+            mRequestTime = requestTime;
+        }
+
+        /**
+         * Returns the elapsed realtime the loaded data has to be newer than.
+         */
+        public long getRequestTime() {
+            return mRequestTime;
+        }
+
+        /**
+         * Returns true if the load was cancelled or superseded by a newer one, in which
+         * case its results are going to be dropped.
+         */
+        public boolean isCancelled() {
+            return mTaskGeneration != mGeneration.get();
+        }
+
+        /**
+         * Delivers an intermediate result to {@link #onLoaded} while the load goes on.
+         */
+        public void publishProgress(final T value) {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        onLoaded(value);
+                    }
+                }
+            });
+        }
+
+        private void finish(final T value, final boolean loaded) {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    mRunning = false;
+                    mFuture = null;
+                    if (loaded) {
+                        onLoaded(value);
+                    } else {
+                        onLoadFailed();
+                    }
+                    if (mPending) {
+                        mPending = false;
+                        start(mPendingRequestTime);
+                    }
+                }
+            });
+        }
+    }
+}
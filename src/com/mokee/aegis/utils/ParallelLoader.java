@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the per-user part of a model load for every user profile in parallel, and merges
+ * the results into one sorted list.
+ */
+public final class ParallelLoader {
+    private static final int MAX_THREADS = 3;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(MAX_THREADS,
+            MAX_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private ParallelLoader() {
+    }
+
+    public interface ProfileTask<T> {
+        List<T> load(int userId);
+    }
+
+    public static <T extends Comparable<? super T>> List<T> loadProfiles(Context context,
+            String tag, ProfileTask<T> task) {
+        List<UserHandle> profiles = UserManager.get(context).getUserProfiles();
+        int[] userIds = new int[profiles.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = profiles.get(i).getIdentifier();
+        }
+        return load(tag, userIds, task);
+    }
+
+    /**
+     * Runs {@code task} once per user, the first user on the calling thread and the others
+     * on a bounded pool, then merges and sorts the results. The wall-clock time of the
+     * whole load is logged under {@code tag}.
+     */
+    public static <T extends Comparable<? super T>> List<T> load(String tag, int[] userIds,
+            final ProfileTask<T> task) {
+        final long start = SystemClock.elapsedRealtime();
+        ArrayList<Future<List<T>>> futures = new ArrayList<>(userIds.length);
+        for (int i = 1; i < userIds.length; i++) {
+            final int userId = userIds[i];
+            futures.add(sExecutor.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    return task.load(userId);
+                }
+            }));
+        }
+        ArrayList<T> result = new ArrayList<>();
+        if (userIds.length > 0) {
+            result.addAll(task.load(userIds[0]));
+        }
+        for (Future<List<T>> future : futures) {
+            try {
+                result.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Collections.sort(result);
+        Log.d(tag, "Loaded " + result.size() + " apps from " + userIds.length + " profiles in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return result;
+    }
+}
@@ -20,34 +20,193 @@ package com.mokee.aegis.utils;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class used to reduce the number of calls to the package manager.
- * This caches app information so it should only be used across parallel PermissionApps
- * instances, and should not be retained across UI refresh.
+ * A single instance is shared by the whole process, so every tab works on the same
+ * package snapshot. Entries are invalidated per package by the package receiver of
+ * {@link com.mokee.aegis.model.AppCatalog} and re-read on the next access.
  */
 public class PmCache {
-    private final SparseArray<List<PackageInfo>> mPackageInfoCache = new SparseArray<>();
+    private static final String TAG = "PmCache";
+
+    private static PmCache sInstance;
+
+    // Map userId -> cached packages of that user
+    private final SparseArray<UserPackages> mPackageInfoCache = new SparseArray<>();
     private final PackageManager mPm;
+    // Map userId -> loads of that user querying the package manager outside of the lock
+    private final SparseIntArray mRunningLoads = new SparseIntArray();
+    // Map userId -> packages invalidated while a load of that user was running, the
+    // list the load read may predate their change
+    private final SparseArray<ArraySet<String>> mLoadInvalidations = new SparseArray<>();
+
+    // Union of every flag set requested so far, new users are loaded with all of them
+    private int mRequestedFlags;
+    private int mHitCount;
+    private int mMissCount;
 
     public PmCache(PackageManager pm) {
         mPm = pm;
     }
 
-    public synchronized List<PackageInfo> getPackages(int userId, int mode) {
-        List<PackageInfo> ret = mPackageInfoCache.get(userId);
-        if (ret == null) {
-            ret = mPm.getInstalledPackages(mode, userId);
-            mPackageInfoCache.put(userId, ret);
+    /**
+     * Announces flags a caller is going to ask for, so that the next load of a user
+     * fetches them together with everything else instead of a second round trip.
+     */
+    public synchronized void requestFlags(int mode) {
+        mRequestedFlags |= mode;
+    }
+
+    /**
+     * Returns the installed packages of a user, holding at least the information selected
+     * by {@code mode}. Entries loaded with a wider set of flags are served as-is, the
+     * package manager is only queried again when {@code mode} asks for flags that are not
+     * cached yet.
+     */
+    public List<PackageInfo> getPackages(int userId, int mode) {
+        final int flags;
+        synchronized (this) {
+            mRequestedFlags |= mode;
+            UserPackages cached = mPackageInfoCache.get(userId);
+            if (cached != null && (cached.flags & mode) == mode) {
+                if (cached.stale.isEmpty()) {
+                    mHitCount++;
+                } else {
+                    mMissCount++;
+                    for (String packageName : cached.stale) {
+                        try {
+                            cached.packages.put(packageName,
+                                    mPm.getPackageInfoAsUser(packageName, cached.flags, userId));
+                        } catch (NameNotFoundException e) {
+                            cached.packages.remove(packageName);
+                        }
+                    }
+                    cached.permissionIndex = null;
+                    Log.d(TAG, "Re-read " + cached.stale.size() + " packages for user " + userId
+                            + " (hits=" + mHitCount + ", misses=" + mMissCount + ")");
+                    cached.stale.clear();
+                }
+                return new ArrayList<>(cached.packages.values());
+            }
+            mMissCount++;
+            flags = mRequestedFlags;
+            mRunningLoads.put(userId, mRunningLoads.get(userId) + 1);
         }
-        return ret;
+
+        // Query outside of the lock, so that the profiles of a parallel load don't queue up.
+        UserPackages loaded = new UserPackages(flags);
+        for (PackageInfo info : mPm.getInstalledPackages(flags, userId)) {
+            loaded.packages.put(info.packageName, info);
+        }
+        final boolean changed;
+        synchronized (this) {
+            final ArraySet<String> invalidated = mLoadInvalidations.get(userId);
+            changed = invalidated != null;
+            if (changed) {
+                loaded.stale.addAll(invalidated);
+            }
+            final int runningLoads = mRunningLoads.get(userId) - 1;
+            if (runningLoads == 0) {
+                mRunningLoads.delete(userId);
+                mLoadInvalidations.remove(userId);
+            } else {
+                mRunningLoads.put(userId, runningLoads);
+            }
+            mPackageInfoCache.put(userId, loaded);
+            Log.d(TAG, "Loaded " + loaded.packages.size() + " packages for user " + userId
+                    + " with flags 0x" + Integer.toHexString(flags)
+                    + " (hits=" + mHitCount + ", misses=" + mMissCount + ")");
+        }
+        if (changed) {
+            // Packages changed during the query, re-read them before serving the list.
+            return getPackages(userId, mode);
+        }
+        return new ArrayList<>(loaded.packages.values());
     }
 
-    public static PmCache getPmCache(Context context) {
-        return new PmCache(context.getPackageManager());
+    /**
+     * Returns an index of the packages of a user by requested permission, built once per
+     * package snapshot. The index is rebuilt after packages changed, callers must not
+     * modify it.
+     */
+    public Map<String, ArraySet<String>> getPermissionIndex(int userId) {
+        List<PackageInfo> packages = getPackages(userId, PackageManager.GET_PERMISSIONS);
+        synchronized (this) {
+            UserPackages cached = mPackageInfoCache.get(userId);
+            if (cached != null && cached.permissionIndex != null) {
+                return cached.permissionIndex;
+            }
+            // Map permission -> packages requesting it
+            ArrayMap<String, ArraySet<String>> index = new ArrayMap<>();
+            for (PackageInfo info : packages) {
+                if (info.requestedPermissions == null) {
+                    continue;
+                }
+                for (String permission : info.requestedPermissions) {
+                    ArraySet<String> requesters = index.get(permission);
+                    if (requesters == null) {
+                        requesters = new ArraySet<>();
+                        index.put(permission, requesters);
+                    }
+                    requesters.add(info.packageName);
+                }
+            }
+            if (cached != null && cached.stale.isEmpty()) {
+                cached.permissionIndex = index;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Marks a single package as stale, it will be re-read from the package manager on the
+     * next {@link #getPackages} call for that user.
+     */
+    public synchronized void invalidatePackage(String packageName, int userId) {
+        UserPackages cached = mPackageInfoCache.get(userId);
+        if (cached != null) {
+            cached.stale.add(packageName);
+        }
+        if (mRunningLoads.get(userId) > 0) {
+            ArraySet<String> invalidated = mLoadInvalidations.get(userId);
+            if (invalidated == null) {
+                invalidated = new ArraySet<>();
+                mLoadInvalidations.put(userId, invalidated);
+            }
+            invalidated.add(packageName);
+        }
+    }
+
+    private static class UserPackages {
+        // PackageManager.GET_* flags the packages below were loaded with
+        final int flags;
+        final ArrayMap<String, PackageInfo> packages = new ArrayMap<>();
+        // Packages that must be re-read before they are served again
+        final ArraySet<String> stale = new ArraySet<>();
+        // Permission -> requesting packages, built on demand from the packages above
+        ArrayMap<String, ArraySet<String>> permissionIndex;
+
+        UserPackages(int flags) {
+            this.flags = flags;
+        }
+    }
+
+    public static synchronized PmCache getPmCache(Context context) {
+        if (sInstance == null) {
+            sInstance = new PmCache(context.getApplicationContext().getPackageManager());
+        }
+        return sInstance;
     }
 
-}
\ No newline at end of file
+}
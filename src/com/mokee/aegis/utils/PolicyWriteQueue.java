@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies the policy changes made by the user off the main thread. The tabs show a change
+ * right away and hand the binder calls to this queue. Changes made within a short delay
+ * are applied together in one pass, in the order they were made. The tabs publish their
+ * changes to the policy store and the app catalog watches the op modes, so the catalog
+ * is not invalidated after a pass. A change that fails calls back on the main thread so
+ * the tab can switch the app back.
+ */
+public class PolicyWriteQueue {
+    private static final String TAG = "PolicyWriteQueue";
+
+    // Delay used to collect the changes of quick successive switches
+    private static final long BATCH_MILLIS = 100;
+
+    private static PolicyWriteQueue sInstance;
+
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Changes waiting for the next batch, guarded by itself
+    private final ArrayList<Entry> mPending = new ArrayList<>();
+    // Changes queued but not applied yet, and the last time there were none, guarded by
+    // mPending
+    private int mUnapplied;
+    private long mWrittenTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private PolicyWriteQueue(Context context) {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized PolicyWriteQueue get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PolicyWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues a change for the next batch. {@code onFailed} is run on the main thread if
+     * the change could not be applied.
+     */
+    public void enqueue(Write write, Runnable onFailed) {
+        synchronized (mPending) {
+            mUnapplied++;
+            mPending.add(new Entry(write, onFailed));
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlushRunnable, BATCH_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Applies a set of changes right away in one pass, keyed by the app they switch, and
+     * calls the listener on the main thread with the keys of the changes that failed.
+     * Changes queued before are applied first.
+     */
+    public void applyBatch(final ArrayMap<String, Write> writes,
+            final OnBatchAppliedListener listener) {
+        synchronized (mPending) {
+            mUnapplied += writes.size();
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                final long start = System.currentTimeMillis();
+                final ArrayList<String> failed = new ArrayList<>();
+                final Batch batch = new Batch();
+                for (int i = 0; i < writes.size(); i++) {
+                    if (!apply(writes.valueAt(i), batch)) {
+                        failed.add(writes.keyAt(i));
+                    }
+                }
+                Log.d(TAG, "Applied " + (writes.size() - failed.size()) + "/" + writes.size()
+                        + " batched policy changes in " + (System.currentTimeMillis() - start)
+                        + " ms");
+                onApplied(writes.size());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onBatchApplied(failed);
+                    }
+                });
+            }
+        });
+    }
+
+    private void flush() {
+        final Entry[] entries;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            entries = mPending.toArray(new Entry[mPending.size()]);
+            mPending.clear();
+        }
+        final long start = System.currentTimeMillis();
+        int failed = 0;
+        final Batch batch = new Batch();
+        for (final Entry entry : entries) {
+            if (!apply(entry.write, batch)) {
+                failed++;
+                mMainHandler.post(entry.onFailed);
+            }
+        }
+        Log.d(TAG, "Applied " + (entries.length - failed) + "/" + entries.length
+                + " policy changes in " + (System.currentTimeMillis() - start) + " ms");
+        onApplied(entries.length);
+    }
+
+    /**
+     * Returns a time, in {@link SystemClock#elapsedRealtime}, before which every change
+     * was applied or failed. That is now if nothing is queued, otherwise the last time the
+     * queue was empty. The tabs queue a change before publishing it, so a change published
+     * before this time is already in the system.
+     */
+    public long getWrittenTime() {
+        synchronized (mPending) {
+            return mUnapplied == 0 ? SystemClock.elapsedRealtime() : mWrittenTime;
+        }
+    }
+
+    private void onApplied(int count) {
+        synchronized (mPending) {
+            mUnapplied -= count;
+            if (mUnapplied == 0) {
+                mWrittenTime = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    private static boolean apply(Write write, Batch batch) {
+        try {
+            return write.apply(batch);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to apply policy change", e);
+            return false;
+        }
+    }
+
+    /**
+     * A single policy change, applied on the queue thread.
+     */
+    public interface Write {
+        /**
+         * Applies the change, returns false if it failed. {@code batch} holds the state
+         * the writes of the same pass read from the system.
+         */
+        boolean apply(Batch batch);
+    }
+
+    /**
+     * State a write needs to read from the system before applying its change.
+     */
+    public interface SharedRead<T> {
+        T read();
+    }
+
+    /**
+     * State shared by the writes of one pass, so reading it costs one call per pass
+     * rather than one per write.
+     */
+    public static class Batch {
+        private final ArrayMap<SharedRead<?>, Object> mValues = new ArrayMap<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Returns the value of {@code read}, reading it on the first call of the pass.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(SharedRead<T> read) {
+            if (!mValues.containsKey(read)) {
+                mValues.put(read, read.read());
+            }
+            return (T) mValues.get(read);
+        }
+    }
+
+    public interface OnBatchAppliedListener {
+        void onBatchApplied(List<String> failedKeys);
+    }
+
+    private static class Entry {
+        final Write write;
+        final Runnable onFailed;
+
+        Entry(Write write, Runnable onFailed) {
+            this.write = write;
+            this.onFailed = onFailed;
+        }
+    }
+}
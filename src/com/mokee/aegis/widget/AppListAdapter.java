@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.UserHandle;
+import android.support.v7.widget.RecyclerView;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.Switch;
+import android.widget.TextView;
+
+import com.mokee.aegis.R;
+import com.mokee.aegis.model.AppListItem;
+import com.mokee.aegis.model.ChangeSet;
+import com.mokee.aegis.utils.IconCache;
+
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Adapter of the app list mode. Unlike the preference hierarchy, it holds one small row
+ * object per app and only creates views for the rows on screen, which are recycled while
+ * scrolling. Rows are split into an allow and a deny section, each with a header, and
+ * keep stable ids derived from the package and the user.
+ * <p>
+ * Long pressing a row starts a selection. While rows are selected, tapping a row toggles
+ * its selection instead of switching it.
+ * <p>
+ * A filter can limit the rows shown to a set of keys. Rows filtered out are still kept
+ * up to date, they just are not part of the sections.
+ */
+public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHolder> {
+    private static final int TYPE_HEADER = 0;
+    private static final int TYPE_APP = 1;
+
+    private static final long HEADER_ALLOW_ID = -2;
+    private static final long HEADER_DENY_ID = -3;
+
+    private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+        @Override
+        public int compare(Row lhs, Row rhs) {
+            final int result = lhs.sortKey.compareTo(rhs.sortKey);
+            if (result == 0) {
+                return lhs.key.compareTo(rhs.key);
+            }
+            return result;
+        }
+    };
+
+    private final LayoutInflater mInflater;
+    private final IconCache mIconCache;
+    private final CharSequence mAllowTitle;
+    private final CharSequence mDenyTitle;
+    private final OnAppSwitchListener mListener;
+
+    // Rows of each section that pass the filter, sorted by label
+    private final ArrayList<Row> mAllowRows = new ArrayList<>();
+    private final ArrayList<Row> mDenyRows = new ArrayList<>();
+    // Map key -> row
+    private final ArrayMap<String, Row> mRows = new ArrayMap<>();
+    // Map key -> stable id, ids are never reused while the adapter lives
+    private final ArrayMap<String, Long> mIds = new ArrayMap<>();
+    private long mNextId;
+    private boolean mPopulated;
+    // Keys of the selected rows
+    private final ArraySet<String> mSelected = new ArraySet<>();
+    // Keys of the rows shown, or null to show every row
+    private Set<String> mFilter;
+
+    public AppListAdapter(Context context, CharSequence allowTitle, CharSequence denyTitle,
+            OnAppSwitchListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mIconCache = IconCache.get(context);
+        mAllowTitle = allowTitle;
+        mDenyTitle = denyTitle;
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Brings the rows up to date with a load of the model. The first load fills the list,
+     * later ones only notify the positions named by {@code changes}.
+     */
+    public void applyChanges(Collection<? extends AppListItem> apps,
+            ChangeSet<? extends AppListItem> changes) {
+        if (!mPopulated) {
+            mPopulated = true;
+            for (AppListItem app : apps) {
+                Row row = new Row(app);
+                mRows.put(row.key, row);
+            }
+            rebuildSections();
+            return;
+        }
+        for (AppListItem app : changes.getRemoved()) {
+            Row row = mRows.remove(app.getKey());
+            if (row != null) {
+                if (mSelected.remove(row.key)) {
+                    mListener.onSelectionChanged(mSelected.size());
+                }
+                if (!isShown(row)) {
+                    continue;
+                }
+                final boolean hadHeader = hasHeader(row.allowed);
+                final int position = getPosition(row);
+                (row.allowed ? mAllowRows : mDenyRows).remove(row);
+                notifyRemoved(row.allowed, position, hadHeader);
+            }
+        }
+        for (AppListItem app : changes.getAdded()) {
+            Row row = new Row(app);
+            mRows.put(row.key, row);
+            insert(row);
+        }
+        for (AppListItem app : changes.getMoved()) {
+            update(app);
+        }
+        for (AppListItem app : changes.getChanged()) {
+            update(app);
+        }
+    }
+
+    /**
+     * Moves the row of an app to the section matching its new state.
+     */
+    public void setAllowed(String key, boolean allowed) {
+        Row row = mRows.get(key);
+        if (row != null && row.allowed != allowed) {
+            if (isShown(row)) {
+                move(row, row.label, row.sortKey, allowed);
+            } else {
+                row.allowed = allowed;
+            }
+        }
+    }
+
+    /**
+     * Only shows the rows whose key is in {@code keys}, or every row if it is null.
+     */
+    public void setFilter(Set<String> keys) {
+        mFilter = keys;
+        rebuildSections();
+    }
+
+    private void rebuildSections() {
+        mAllowRows.clear();
+        mDenyRows.clear();
+        for (int i = 0; i < mRows.size(); i++) {
+            Row row = mRows.valueAt(i);
+            if (mFilter == null || mFilter.contains(row.key)) {
+                (row.allowed ? mAllowRows : mDenyRows).add(row);
+            }
+        }
+        Collections.sort(mAllowRows, ROW_ORDER);
+        Collections.sort(mDenyRows, ROW_ORDER);
+        notifyDataSetChanged();
+    }
+
+    private boolean isShown(Row row) {
+        return mFilter == null || mFilter.contains(row.key);
+    }
+
+    /**
+     * Returns the state shown for an app, which includes switches still being written.
+     */
+    public boolean isAllowed(String key) {
+        Row row = mRows.get(key);
+        return row != null && row.allowed;
+    }
+
+    public List<String> getSelectedKeys() {
+        return new ArrayList<>(mSelected);
+    }
+
+    public void clearSelection() {
+        if (!mSelected.isEmpty()) {
+            mSelected.clear();
+            notifyItemRangeChanged(0, getItemCount());
+        }
+    }
+
+    private void toggleSelection(Row row) {
+        if (!mSelected.remove(row.key)) {
+            mSelected.add(row.key);
+        }
+        notifyItemChanged(getPosition(row));
+        mListener.onSelectionChanged(mSelected.size());
+    }
+
+    private void update(AppListItem app) {
+        Row row = mRows.get(app.getKey());
+        if (row == null) {
+            row = new Row(app);
+            mRows.put(row.key, row);
+            insert(row);
+            return;
+        }
+        row.uid = app.getUid();
+        row.lastUpdateTime = app.getLastUpdateTime();
+        if (!isShown(row)) {
+            row.label = app.getLabel();
+            row.sortKey = app.getSortKey();
+            row.allowed = app.getAllowed();
+            return;
+        }
+        if (row.allowed == app.getAllowed() && row.label.equals(app.getLabel())) {
+            notifyItemChanged(getPosition(row));
+            return;
+        }
+        move(row, app.getLabel(), app.getSortKey(), app.getAllowed());
+    }
+
+    private void insert(Row row) {
+        if (!isShown(row)) {
+            return;
+        }
+        final boolean hadHeader = hasHeader(row.allowed);
+        ArrayList<Row> rows = row.allowed ? mAllowRows : mDenyRows;
+        int index = Collections.binarySearch(rows, row, ROW_ORDER);
+        rows.add(index < 0 ? -index - 1 : index, row);
+        final int position = getPosition(row);
+        if (hadHeader) {
+            notifyItemInserted(position);
+        } else {
+            notifyItemRangeInserted(position - 1, 2);
+        }
+    }
+
+    private void notifyRemoved(boolean allowed, int position, boolean hadHeader) {
+        if (hadHeader && !hasHeader(allowed)) {
+            // The section became empty, its header goes away with the row.
+            notifyItemRangeRemoved(position - 1, 2);
+        } else {
+            notifyItemRemoved(position);
+        }
+    }
+
+    private void move(Row row, String label, CollationKey sortKey, boolean allowed) {
+        final int from = getPosition(row);
+        final boolean headersBefore = hasHeader(true) && hasHeader(false);
+        (row.allowed ? mAllowRows : mDenyRows).remove(row);
+        row.label = label;
+        row.sortKey = sortKey;
+        row.allowed = allowed;
+        ArrayList<Row> rows = allowed ? mAllowRows : mDenyRows;
+        int index = Collections.binarySearch(rows, row, ROW_ORDER);
+        rows.add(index < 0 ? -index - 1 : index, row);
+        final boolean headersAfter = hasHeader(true) && hasHeader(false);
+        if (headersBefore && headersAfter) {
+            final int to = getPosition(row);
+            if (from != to) {
+                notifyItemMoved(from, to);
+            }
+            notifyItemChanged(to);
+        } else {
+            // A section appeared or went away, shifting the headers as well.
+            notifyDataSetChanged();
+        }
+    }
+
+    private boolean hasHeader(boolean allowed) {
+        return !(allowed ? mAllowRows : mDenyRows).isEmpty();
+    }
+
+    private int getDenyHeaderPosition() {
+        return mAllowRows.isEmpty() ? 0 : mAllowRows.size() + 1;
+    }
+
+    private int getPosition(Row row) {
+        if (row.allowed) {
+            return Collections.binarySearch(mAllowRows, row, ROW_ORDER) + 1;
+        }
+        return getDenyHeaderPosition() + Collections.binarySearch(mDenyRows, row, ROW_ORDER) + 1;
+    }
+
+    // Returns the row at a position, or null for a section header.
+    private Row getRow(int position) {
+        if (!mAllowRows.isEmpty()) {
+            if (position == 0) {
+                return null;
+            }
+            if (position <= mAllowRows.size()) {
+                return mAllowRows.get(position - 1);
+            }
+        }
+        int index = position - getDenyHeaderPosition();
+        return index == 0 ? null : mDenyRows.get(index - 1);
+    }
+
+    @Override
+    public int getItemCount() {
+        return (mAllowRows.isEmpty() ? 0 : mAllowRows.size() + 1)
+                + (mDenyRows.isEmpty() ? 0 : mDenyRows.size() + 1);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return getRow(position) == null ? TYPE_HEADER : TYPE_APP;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Row row = getRow(position);
+        if (row == null) {
+            return position == 0 && !mAllowRows.isEmpty() ? HEADER_ALLOW_ID : HEADER_DENY_ID;
+        }
+        return row.id;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        if (viewType == TYPE_HEADER) {
+            return new ViewHolder(mInflater.inflate(R.layout.preference_category_material,
+                    parent, false));
+        }
+        final ViewHolder holder = new ViewHolder(mInflater.inflate(R.layout.app_list_item,
+                parent, false));
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Row row = holder.row;
+                if (row == null) {
+                    return;
+                }
+                if (!mSelected.isEmpty()) {
+                    toggleSelection(row);
+                } else if (mListener.onAppSwitched(row.key, !row.allowed)) {
+                    setAllowed(row.key, !row.allowed);
+                }
+            }
+        });
+        holder.itemView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (holder.row == null || !mSelected.isEmpty()) {
+                    return false;
+                }
+                toggleSelection(holder.row);
+                return true;
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(final ViewHolder holder, int position) {
+        final Row row = getRow(position);
+        holder.row = row;
+        cancelIcon(holder);
+        if (row == null) {
+            holder.title.setText(getItemId(position) == HEADER_ALLOW_ID ? mAllowTitle : mDenyTitle);
+            return;
+        }
+        holder.title.setText(row.label);
+        holder.switchWidget.setChecked(row.allowed);
+        holder.itemView.setActivated(mSelected.contains(row.key));
+        final int userId = UserHandle.getUserId(row.uid);
+        Bitmap icon = mIconCache.getCachedIcon(row.packageName, userId, row.lastUpdateTime);
+        holder.icon.setImageBitmap(icon);
+        if (icon == null) {
+            holder.iconListener = new IconCache.OnIconLoadedListener() {
+                @Override
+                public void onIconLoaded(Bitmap icon) {
+                    holder.iconListener = null;
+                    holder.icon.setImageBitmap(icon);
+                }
+            };
+            mIconCache.loadIcon(row.packageName, userId, row.lastUpdateTime, holder.iconListener);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        cancelIcon(holder);
+    }
+
+    // The holder was bound again or scrolled away, its icon is not needed anymore.
+    private void cancelIcon(ViewHolder holder) {
+        if (holder.iconListener != null) {
+            mIconCache.cancelIcon(holder.iconListener);
+            holder.iconListener = null;
+        }
+    }
+
+    private long getStableId(AppListItem app) {
+        Long id = mIds.get(app.getKey());
+        if (id == null) {
+            id = mNextId++;
+            mIds.put(app.getKey(), id);
+        }
+        return id;
+    }
+
+    public interface OnAppSwitchListener {
+        /**
+         * Called when the user switched the row of an app. Returns false if the new state
+         * could not be applied, the row then keeps its previous state.
+         */
+        boolean onAppSwitched(String key, boolean allowed);
+
+        /**
+         * Called when rows were selected or unselected, with the number of rows selected.
+         */
+        void onSelectionChanged(int count);
+    }
+
+    private class Row {
+        final String key;
+        final String packageName;
+        final long id;
+        String label;
+        CollationKey sortKey;
+        boolean allowed;
+        int uid;
+        long lastUpdateTime;
+
+        Row(AppListItem app) {
+            key = app.getKey();
+            packageName = app.getPackageName();
+            id = getStableId(app);
+            label = app.getLabel();
+            sortKey = app.getSortKey();
+            allowed = app.getAllowed();
+            uid = app.getUid();
+            lastUpdateTime = app.getLastUpdateTime();
+        }
+    }
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final ImageView icon;
+        final Switch switchWidget;
+        Row row;
+        // Listener of the icon the holder is still waiting for
+        IconCache.OnIconLoadedListener iconListener;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            title = (TextView) itemView.findViewById(android.R.id.title);
+            icon = (ImageView) itemView.findViewById(android.R.id.icon);
+            switchWidget = (Switch) itemView.findViewById(R.id.switch_widget);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015-2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.mokee.aegis.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v14.preference.SwitchPreference;
+import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceViewHolder;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.mokee.aegis.utils.IconCache;
+
+import java.text.CollationKey;
+
+/**
+ * Switch row of an app list. The icon is not held by the preference, it is taken from
+ * the {@link IconCache} when the row is bound, or decoded in the background for rows that
+ * are bound for the first time. Only rows that are visible or about to scroll in are bound,
+ * so off-screen apps never cost an icon decode.
+ * <p>
+ * Rows are ordered by the collation key of their label rather than by comparing titles.
+ */
+public class AppSwitchPreference extends SwitchPreference {
+
+    private final IconCache mIconCache;
+    private String mAppKey;
+    private String mPackageName;
+    private int mUserId;
+    private long mLastUpdateTime;
+    private CollationKey mSortKey;
+
+    public AppSwitchPreference(Context context) {
+        super(context);
+        mIconCache = IconCache.get(context);
+    }
+
+    /**
+     * Sets the app of the row. The preference key stays the package name, since that is
+     * what the policy preferences are keyed by, {@code appKey} tells the row apart from the
+     * one of the same package in another profile.
+     */
+    public void setAppInfo(String appKey, String packageName, int userId, long lastUpdateTime) {
+        mAppKey = appKey;
+        mPackageName = packageName;
+        mUserId = userId;
+        mLastUpdateTime = lastUpdateTime;
+    }
+
+    public String getAppKey() {
+        return mAppKey;
+    }
+
+    public void setSortKey(CollationKey sortKey) {
+        mSortKey = sortKey;
+    }
+
+    @Override
+    public int compareTo(Preference another) {
+        if (another instanceof AppSwitchPreference && getOrder() == another.getOrder()) {
+            final CollationKey otherKey = ((AppSwitchPreference) another).mSortKey;
+            if (mSortKey != null && otherKey != null) {
+                final int result = mSortKey.compareTo(otherKey);
+                return result != 0 ? result
+                        : mAppKey.compareTo(((AppSwitchPreference) another).mAppKey);
+            }
+        }
+        return super.compareTo(another);
+    }
+
+    @Override
+    public void onBindViewHolder(PreferenceViewHolder holder) {
+        super.onBindViewHolder(holder);
+        final ImageView iconView = (ImageView) holder.findViewById(android.R.id.icon);
+        if (iconView == null || mPackageName == null) {
+            return;
+        }
+        final View iconFrame = holder.findViewById(com.android.internal.R.id.icon_frame);
+        if (iconFrame != null) {
+            iconFrame.setVisibility(View.VISIBLE);
+        }
+        iconView.setVisibility(View.VISIBLE);
+        // Recycled views may still be waiting for the icon of their previous row.
+        final Object pending = iconView.getTag();
+        if (pending instanceof IconCache.OnIconLoadedListener) {
+            mIconCache.cancelIcon((IconCache.OnIconLoadedListener) pending);
+        }
+        iconView.setTag(null);
+        Bitmap icon = mIconCache.getCachedIcon(mPackageName, mUserId, mLastUpdateTime);
+        if (icon != null) {
+            iconView.setImageBitmap(icon);
+            return;
+        }
+        iconView.setImageDrawable(null);
+        final IconCache.OnIconLoadedListener listener = new IconCache.OnIconLoadedListener() {
+            @Override
+            public void onIconLoaded(Bitmap icon) {
+                if (iconView.getTag() == this) {
+                    iconView.setTag(null);
+                    iconView.setImageBitmap(icon);
+                }
+            }
+        };
+        iconView.setTag(listener);
+        mIconCache.loadIcon(mPackageName, mUserId, mLastUpdateTime, listener);
+    }
+}